@@ -16,30 +16,86 @@
 package vycegripp;
 
 import java.io.InputStream;
+import java.io.IOException;
+import java.io.FilterInputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 //import java.io.IOException;
 //import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
 //import java.io.BufferedInputStream;
 //import java.io.CharConversionException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.net.HttpURLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.net.URI;
+import java.net.URISyntaxException;
 //import java.net.URLEncoder;
 import java.net.URLDecoder;
 import java.util.Properties;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.LinkedHashSet;
 import java.util.NoSuchElementException;
+import java.util.Iterator;
 import java.util.concurrent.Executors; 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Attributes;
 import org.jsoup.nodes.Attribute;
 import org.jsoup.select.Elements;
+import vycegripp.utilities.LatencyHistogram;
+import vycegripp.utilities.LinkScanner;
+import vycegripp.utilities.LinkStatusCache;
+import vycegripp.utilities.PageCache;
+import vycegripp.utilities.PageFetcher;
 import vycegripp.utilities.PageReader;
+import vycegripp.utilities.ResultWriter;
+import vycegripp.utilities.RobotsCache;
+import vycegripp.utilities.SitemapReader;
 
 /**
  * <p>
@@ -47,7 +103,11 @@ import vycegripp.utilities.PageReader;
  * one argument which is the path of the properties file. In the properties
  * file, there must be a property named "URL" pointing to the web page to
  * test the links on. When program is complete, if there are any "bad links",
- * a list of the bad links will be produced.
+ * a list of the bad links will be produced. Instead of "URL", there may be
+ * a property named "URL_LIST" naming a file of pages to test (one URL per
+ * line), in which case the links on every page are tested in one run and
+ * a report is produced for each page. Other (optional) properties
+ * that tune how the links are checked are described in {@link #configure}.
  * </p>
  * <p>
  * Sample output extract:
@@ -74,6 +134,7 @@ import vycegripp.utilities.PageReader;
  * <ul>
  * <li>JSoup library (from http://jsoup.org).
  * <li>PageReader Java utility from this repository (Tools/src/main/java/vycegripp/utilities/PageReader.java)
+ * <li>The java.net.http HTTP client (Java 11 or later).
  * </ul>
  * 
  * @since 1.7
@@ -88,7 +149,15 @@ public final class LinkCheckerMT {
                 throw new IllegalArgumentException("Missing URL from command line");
             }
             LinkCheckerMT lc = new LinkCheckerMT();
-            lc.execute( lc.getProperties( args[0] ).getProperty( "URL" ) );
+            Properties props = lc.getProperties( args[0] );
+            final String urlList = props.getProperty( "URL_LIST" );
+            if( urlList != null && urlList.trim().length() > 0 ) {
+                lc.executeBatch( props, lc.getURLs( urlList.trim() ) );
+            }
+            else {
+                lc.configure( props );
+                lc.execute( props.getProperty( "URL" ) );
+            }
         }
         catch( Exception e ) {
             e.printStackTrace();
@@ -99,12 +168,50 @@ public final class LinkCheckerMT {
 
     public final static int MAX_THREADS = 4; // On a dual-core machine, this is plenty
     public final static boolean TRACING_CHAR_INPUT = false;
-    public final static boolean TRACING_URLS = true;
+    public final static boolean TRACING_URLS = false;
+    public final static boolean TRACING_THREADS = false;
     public final static double MILLISECS_PER_SECOND = 1000.0D;
-    public final static int WAIT_FOR_COMPLETION_IN_SECONDS = 60;
+    public final static int WAIT_FOR_COMPLETION_IN_SECONDS = 60; // default DEADLINE
     public final static String DEFAULT_ENCODING = "UTF-8";
     public final static boolean TRY_AGAIN = true;
-    public final static int TRY_AGAIN_SLEEP_INTERVAL = 5000; // in milliseconds
+    public final static long MAX_RETRY_DELAY = 60000; // in milliseconds
+    public final static String POOL_ENGINE = "pool";       // MAX_THREADS platform threads
+    public final static String VIRTUAL_ENGINE = "virtual"; // one virtual thread per link
+    public final static int DEFAULT_MAX_CONCURRENCY = 64;
+    public final static int DEFAULT_MAX_PER_HOST = MAX_THREADS;
+    public final static int DEFAULT_MIN_HOST_DELAY = 0; // in milliseconds
+    public final static String HEAD_PROBE = "head"; // HEAD first, ranged GET if HEAD is unsupported
+    public final static String GET_PROBE = "get";   // plain GET (the original behavior)
+    public final static String KEEP_TRAILING_SLASH = "keep";
+    public final static String STRIP_TRAILING_SLASH = "strip";
+    public final static int DEFAULT_LINK_CACHE_TTL = 24; // in hours
+    public final static int DEFAULT_LINK_CACHE_FAILED_TTL = 10; // in minutes
+    public final static int DEFAULT_LINK_CACHE_ENTRIES = 10000;
+    public final static int DEFAULT_CRAWL_DEPTH = 0; // just the one page
+    public final static int DEFAULT_MAX_FRONTIER = 10000;
+    public final static int DEFAULT_MAX_VISITED = 1000000;
+    public final static int DEFAULT_CONNECT_TIMEOUT = 10000; // in milliseconds
+    public final static int DEFAULT_READ_TIMEOUT = 30000;    // in milliseconds
+    public final static int HOSTS_TO_REPORT = 10; // slowest hosts listed in the summary
+    public final static int DEFAULT_PROGRESS_INTERVAL = 10; // in seconds; 0 for no progress reports
+    public final static String IGNORE_ROBOTS = "ignore";   // check every link, whatever robots.txt says
+    public final static String RESPECT_ROBOTS = "respect"; // don't check or crawl what robots.txt disallows
+    public final static String PAGE_DISCOVERY = "page";       // find the links on the page (or crawl)
+    public final static String SITEMAP_DISCOVERY = "sitemap"; // take the links from the site's sitemaps
+    public final static int DEFAULT_MAX_SITEMAPS = 1000;
+    public final static String ROBOTS_USER_AGENT = "LinkCheckerMT";
+    public final static String METRICS_MBEAN_NAME = "vycegripp:type=LinkCheckerMT";
+    public final static int DEFAULT_PAGE_CACHE_MEMORY = 64; // in megabytes
+    public final static String JSOUP_EXTRACTOR = "jsoup";         // parse the whole page, then extract
+    public final static String STREAMING_EXTRACTOR = "streaming"; // extract as the page arrives
+
+    // File extensions of links that aren't worth crawling for more links.
+    private final static Set<String> NOT_CRAWLABLE = new HashSet<String>( Arrays.asList(
+            "pdf", "zip", "gz", "tgz", "jar", "exe", "dmg", "iso", "jpg", "jpeg", "png", "gif",
+            "svg", "ico", "mp3", "mp4", "avi", "mov", "doc", "docx", "xls", "xlsx", "ppt", "pptx" ) );
+
+    // Content types of the pages worth crawling for more links.
+    private final static String[] CRAWLABLE_TYPES = { "text/html", "application/xhtml+xml" };
 
     // A distinguishable exception class to indicate that a "bad" link was found.
     static final class BadLinkException extends Exception {
@@ -124,8 +231,125 @@ public final class LinkCheckerMT {
         return this.badLinks;
     }
 
+    // Failed links waiting out their backoff delay before being tried again.
+    private final DelayQueue<DelayedLink> retryQueue = new DelayQueue<DelayedLink>();
+
+    // Links taken off the queue whose check hasn't finished yet.
+    private final Set<String> linksInProgress = Collections.newSetFromMap( new ConcurrentHashMap<String,Boolean>() );
+
+    // Counts the distinct links not yet resolved (found okay or bad), so
+    // we know exactly when the last check is done.
+    private final CompletionTracker completion = new CompletionTracker();
+
+    // Set when the deadline passes, to tell the link checkers to stop.
+    private volatile boolean stopping = false;
+
+    // How long (in seconds) the link checkers get before the remaining links are reported as timed out.
+    private int deadline = WAIT_FOR_COMPLETION_IN_SECONDS;
+
+    // Limits on how long a single request may take to connect and to answer.
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+
+    // Pooled, keep-alive HTTP client through which HTTP links are probed.
+    private HttpClient httpClient = null;
+
+    // How links are extracted from a page.
+    private String extractor = JSOUP_EXTRACTOR;
+
+    // Time taken (in nanoseconds) by every network probe, overall and by host.
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final ConcurrentHashMap<String,LatencyHistogram> hostLatencies = new ConcurrentHashMap<String,LatencyHistogram>();
+
+    // Every distinct (canonical) link found, with what we know about it.
+    // Each distinct link is tested only once (retries aside). Not bounded:
+    // it grows with the number of distinct links found in the run.
+    private final ConcurrentHashMap<String,LinkInfo> linkInfo = new ConcurrentHashMap<String,LinkInfo>();
+
+    // What we know about a distinct link: the page it was first found on,
+    // the number of times it appears, the number of times we've tried it
+    // and whether it has been resolved (checked for good or timed out);
+    // whoever sets <tt>resolved</tt> reports the link, so it is reported once.
+    static final class LinkInfo {
+        final String sourcePage;
+        final AtomicInteger occurrences = new AtomicInteger(1);
+        final AtomicInteger attempts = new AtomicInteger(0);
+        final AtomicBoolean resolved = new AtomicBoolean(false);
+        LinkInfo( final String sourcePage ) {
+            this.sourcePage = sourcePage;
+        }
+    }
+
+    // Held while a link checker resolves a link and adds it to badLinks,
+    // and while the deadline's report claims the links still unresolved,
+    // so the report sees every bad link that was resolved before it.
+    private final Object resolutionLock = new Object();
+
+    // The page whose links are being read (only touched by the reading thread).
+    private String pageBeingRead = null;
+
+    // Where a record of each checked link is streamed, if anywhere.
+    private ResultWriter resultWriter = null;
+    static final String[] RESULT_COLUMNS = { "url", "outcome", "status", "latency_ms", "attempts", "source_page" };
+
     private ExecutorService execService = null;
 
+    // In batch mode, the checker (one per page) gets its thread pool, link
+    // status cache, host scheduler and HTTP client from the batch checker,
+    // which owns them.
+    private ExecutorService sharedExecService = null;
+    private boolean batchMember = false;
+
+    // Which execution engine to use and, for the "virtual" engine, the
+    // maximum number of link checks that may be in progress at once.
+    private String engine = POOL_ENGINE;
+    private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+
+    // Keeps us from hammering any one host, whatever the engine.
+    private HostScheduler hostScheduler = new HostScheduler( DEFAULT_MAX_PER_HOST, DEFAULT_MIN_HOST_DELAY );
+
+    // How a link is probed for connectivity.
+    private String probe = HEAD_PROBE;
+
+    // Whether a trailing slash on a link's path is significant when deciding
+    // whether two links point at the same target.
+    private String trailingSlash = KEEP_TRAILING_SLASH;
+
+    // Results of earlier link checks (possibly from earlier runs); null if not wanted.
+    private LinkStatusCache linkStatusCache = null;
+    private final AtomicInteger cacheHits = new AtomicInteger(0);
+
+    // Each host's robots.txt rules and sitemaps, fetched at most once a run;
+    // whether the rules are obeyed; and where the links to check come from.
+    private RobotsCache robots = null;
+    private boolean respectRobots = false;
+    private String discovery = PAGE_DISCOVERY;
+    private int maxSitemaps = DEFAULT_MAX_SITEMAPS;
+    private int sitemapsRead = 0;
+    private int pagesDisallowed = 0;
+    private final AtomicInteger linksDisallowed = new AtomicInteger(0);
+
+    // Live counters for the metrics endpoints, and the endpoints themselves
+    // (only started if asked for).
+    private Metrics metrics = new Metrics();
+    private int metricsPort = 0;
+    private boolean metricsJmx = false;
+    private HttpServer metricsServer = null;
+    private ObjectName metricsName = null;
+
+    // Reports progress periodically while the links are being checked.
+    private ProgressReporter progress = null;
+    private int progressInterval = DEFAULT_PROGRESS_INTERVAL;
+
+    // How far to crawl the site from the starting page, and the limits on
+    // the memory the crawl may use. Counters are not thread safe and not shared.
+    private int crawlDepth = DEFAULT_CRAWL_DEPTH;
+    private int maxFrontier = DEFAULT_MAX_FRONTIER;
+    private int maxVisited = DEFAULT_MAX_VISITED;
+    private int pagesCrawled = 0;
+    private int pagesNotCrawled = 0;
+    private int pagesNotHtml = 0;
+
     public Properties getProperties( String propertiesPath ) throws Exception {
         File file = new File( propertiesPath );
         FileInputStream fis = new FileInputStream( file );
@@ -134,6 +358,206 @@ public final class LinkCheckerMT {
         return props;
     }
 
+    /**
+     * Pick up the optional tuning properties:
+     * <ul>
+     * <li>ENGINE: "pool" (default) for MAX_THREADS platform threads or
+     *     "virtual" for one virtual thread per link.
+     * <li>MAX_CONCURRENCY: upper limit on simultaneous link checks in the
+     *     "virtual" engine (default DEFAULT_MAX_CONCURRENCY).
+     * <li>MAX_PER_HOST: upper limit on simultaneous link checks against
+     *     any one host (default DEFAULT_MAX_PER_HOST).
+     * <li>MIN_HOST_DELAY: minimum time in milliseconds between the starts
+     *     of successive checks (and, when crawling, page reads) against
+     *     the same host (default DEFAULT_MIN_HOST_DELAY).
+     * <li>PROBE: "head" (default) to ask HTTP servers for headers only,
+     *     falling back to a ranged GET when a server answers HEAD with 405
+     *     or 501, or "get" to open a full GET on every link.
+     * <li>TRAILING_SLASH: "keep" (default) to treat http://host/a/ and
+     *     http://host/a as different links or "strip" to treat them as the same.
+     * <li>LINK_CACHE: path of a file in which to remember links that
+     *     checked out okay, so later runs needn't check them again.
+     * <li>LINK_CACHE_TTL: number of hours a remembered link is trusted
+     *     before it is rechecked (default DEFAULT_LINK_CACHE_TTL).
+     * <li>LINK_CACHE_FAILED_TTL: number of minutes a link that failed
+     *     its check (after any retries) is remembered as bad before it is
+     *     checked again (default DEFAULT_LINK_CACHE_FAILED_TTL; 0 to
+     *     always check links that failed again).
+     * <li>LINK_CACHE_ENTRIES: number of remembered links to keep parsed
+     *     (default DEFAULT_LINK_CACHE_ENTRIES); every remembered link is
+     *     held in memory, the rest as a line of text.
+     * <li>CRAWL_DEPTH: how many links away from the starting page to
+     *     follow links to other pages on the same host, checking the links
+     *     on each of those pages as well (default 0: the starting page only).
+     * <li>MAX_FRONTIER: most pages that may be waiting to be crawled at
+     *     once (default DEFAULT_MAX_FRONTIER).
+     * <li>MAX_VISITED: most pages the crawl will keep track of (default
+     *     DEFAULT_MAX_VISITED). These two limits bound only the crawl
+     *     itself: every distinct link found (crawled or not) is still
+     *     remembered, with where it was found and how often, until the
+     *     run ends, so memory grows with the number of distinct links.
+     * <li>DEADLINE: number of seconds the link checks may take in all;
+     *     any link not resolved by then is reported as timed out (default
+     *     WAIT_FOR_COMPLETION_IN_SECONDS).
+     * <li>CONNECT_TIMEOUT: milliseconds a single request may take to
+     *     connect (default DEFAULT_CONNECT_TIMEOUT).
+     * <li>READ_TIMEOUT: milliseconds a single request may wait for the
+     *     server to answer (default DEFAULT_READ_TIMEOUT).
+     * <li>EXTRACTOR: "jsoup" (default) to read each whole page and parse it
+     *     with JSoup, or "streaming" to pick the links out of each page as
+     *     it is read. Either way, links are checked as soon as they are
+     *     found, while the rest of the page or site is still being read.
+     * <li>RESULTS_FILE: file to stream a record of each checked link to as
+     *     it is resolved: its URL, outcome, HTTP status, latency of the
+     *     last attempt, number of attempts and the page it was found on.
+     * <li>RESULTS_FORMAT: "jsonl" (default) for JSON Lines or "csv".
+     * <li>PROGRESS_INTERVAL: seconds between progress reports (links
+     *     resolved, throughput, links remaining and estimated time to go)
+     *     while the links are being checked (default
+     *     DEFAULT_PROGRESS_INTERVAL; 0 for none).
+     * <li>ROBOTS: "ignore" (default) to check every link, or "respect" to
+     *     neither check nor crawl links that the host's robots.txt
+     *     disallows (for user agent ROBOTS_USER_AGENT), and to start the
+     *     checks against a host no closer together than its Crawl-delay.
+     * <li>DISCOVERY: "page" (default) to check the links found on the page
+     *     (or, with CRAWL_DEPTH, the site), or "sitemap" to check the pages
+     *     listed in the site's sitemaps instead: those named in robots.txt,
+     *     or else /sitemap.xml. Sitemap indexes are followed and gzipped
+     *     sitemaps are decompressed.
+     * <li>MAX_SITEMAPS: most sitemaps (indexes included) to read for one
+     *     site (default DEFAULT_MAX_SITEMAPS).
+     * <li>METRICS_PORT: if given, a local port on which to serve live
+     *     metrics (links queued, in flight, checked and bad, retries, page
+     *     bytes read and probe latency percentiles) as plain text, at
+     *     http://127.0.0.1:METRICS_PORT/metrics, while the links are being
+     *     checked.
+     * <li>METRICS_JMX: "on" to expose the same metrics as an MXBean
+     *     named METRICS_MBEAN_NAME while the links are being checked
+     *     (default "off").
+     * <li>PAGE_CACHE: directory in which to keep the pages read (with
+     *     the JSoup extractor), so that a page that hasn't changed since
+     *     the last run is revalidated rather than downloaded again.
+     * <li>PAGE_CACHE_MEMORY: megabytes of cached pages to keep in memory
+     *     (default DEFAULT_PAGE_CACHE_MEMORY).
+     * </ul>
+     * The pool of HTTP connections kept alive between probes can't be
+     * tuned here: it is read once per JVM, so its settings are startup
+     * options, -Djdk.httpclient.connectionPoolSize=N for the most idle
+     * connections kept (default 0, no limit) and
+     * -Djdk.httpclient.keepalive.timeout=S for the seconds an idle
+     * connection is kept alive.
+     * @param props
+     * @throws Exception if the link cache file can't be read or the results
+     * file can't be created.
+     */
+    public void configure( final Properties props ) throws Exception {
+        this.configure( props, null );
+    }
+
+    /**
+     * Pick up the optional tuning properties (see {@link #configure(Properties)}).
+     * @param props
+     * @param batch If not <tt>null</tt>, the batch checker whose shared
+     * resources (thread pool, link status cache, host scheduler, HTTP client,
+     * result writer, robots.txt cache, metrics) are to be
+     * used rather than new ones.
+     * @throws Exception if the link cache file can't be read or the results
+     * file can't be created.
+     */
+    private void configure( final Properties props, final LinkCheckerMT batch ) throws Exception {
+        this.engine = getChoiceProperty( props, "ENGINE", POOL_ENGINE, VIRTUAL_ENGINE );
+        this.maxConcurrency = getIntProperty( props, "MAX_CONCURRENCY", DEFAULT_MAX_CONCURRENCY, 1 );
+        this.probe = getChoiceProperty( props, "PROBE", HEAD_PROBE, GET_PROBE );
+        this.trailingSlash = getChoiceProperty( props, "TRAILING_SLASH", KEEP_TRAILING_SLASH, STRIP_TRAILING_SLASH );
+        if( batch != null ) {
+            this.batchMember = true;
+            this.sharedExecService = batch.sharedExecService;
+            this.hostScheduler = batch.hostScheduler;
+            this.linkStatusCache = batch.linkStatusCache;
+            this.httpClient = batch.httpClient;
+            this.resultWriter = batch.resultWriter;
+            this.robots = batch.robots;
+            this.metrics = batch.metrics;
+        }
+        else {
+            this.hostScheduler = new HostScheduler(
+                    getIntProperty( props, "MAX_PER_HOST", DEFAULT_MAX_PER_HOST, 1 ),
+                    getIntProperty( props, "MIN_HOST_DELAY", DEFAULT_MIN_HOST_DELAY, 0 ) );
+            final String linkCachePath = props.getProperty( "LINK_CACHE" );
+            if( linkCachePath != null && linkCachePath.trim().length() > 0 ) {
+                this.linkStatusCache = new LinkStatusCache( new File( linkCachePath.trim() ),
+                        TimeUnit.HOURS.toMillis( getIntProperty( props, "LINK_CACHE_TTL", DEFAULT_LINK_CACHE_TTL, 0 ) ),
+                        TimeUnit.MINUTES.toMillis( getIntProperty( props, "LINK_CACHE_FAILED_TTL", DEFAULT_LINK_CACHE_FAILED_TTL, 0 ) ),
+                        getIntProperty( props, "LINK_CACHE_ENTRIES", DEFAULT_LINK_CACHE_ENTRIES, 1 ) );
+            }
+            final String pageCachePath = props.getProperty( "PAGE_CACHE" );
+            if( pageCachePath != null && pageCachePath.trim().length() > 0 ) {
+                PageReader.setCache( new PageCache( new File( pageCachePath.trim() ),
+                        getIntProperty( props, "PAGE_CACHE_MEMORY", DEFAULT_PAGE_CACHE_MEMORY, 1 ) * 1024L * 1024L ) );
+            }
+            final String resultsPath = props.getProperty( "RESULTS_FILE" );
+            if( resultsPath != null && resultsPath.trim().length() > 0 ) {
+                this.resultWriter = new ResultWriter( new File( resultsPath.trim() ),
+                        getChoiceProperty( props, "RESULTS_FORMAT", ResultWriter.JSON_LINES, ResultWriter.CSV ),
+                        RESULT_COLUMNS );
+            }
+        }
+        this.crawlDepth = getIntProperty( props, "CRAWL_DEPTH", DEFAULT_CRAWL_DEPTH, 0 );
+        this.maxFrontier = getIntProperty( props, "MAX_FRONTIER", DEFAULT_MAX_FRONTIER, 1 );
+        this.maxVisited = getIntProperty( props, "MAX_VISITED", DEFAULT_MAX_VISITED, 1 );
+        this.deadline = getIntProperty( props, "DEADLINE", WAIT_FOR_COMPLETION_IN_SECONDS, 1 );
+        this.connectTimeout = getIntProperty( props, "CONNECT_TIMEOUT", DEFAULT_CONNECT_TIMEOUT, 1 );
+        this.readTimeout = getIntProperty( props, "READ_TIMEOUT", DEFAULT_READ_TIMEOUT, 1 );
+        this.extractor = getChoiceProperty( props, "EXTRACTOR", JSOUP_EXTRACTOR, STREAMING_EXTRACTOR );
+        this.progressInterval = getIntProperty( props, "PROGRESS_INTERVAL", DEFAULT_PROGRESS_INTERVAL, 0 );
+        this.respectRobots = RESPECT_ROBOTS.equals( getChoiceProperty( props, "ROBOTS", IGNORE_ROBOTS, RESPECT_ROBOTS ) );
+        this.discovery = getChoiceProperty( props, "DISCOVERY", PAGE_DISCOVERY, SITEMAP_DISCOVERY );
+        this.maxSitemaps = getIntProperty( props, "MAX_SITEMAPS", DEFAULT_MAX_SITEMAPS, 1 );
+        this.metricsPort = getIntProperty( props, "METRICS_PORT", 0, 0 );
+        this.metricsJmx = "on".equals( getChoiceProperty( props, "METRICS_JMX", "off", "on" ) );
+        if( this.robots == null && ( this.respectRobots || SITEMAP_DISCOVERY.equals( this.discovery ) ) ) {
+            this.robots = new RobotsCache( ROBOTS_USER_AGENT, this.connectTimeout, this.readTimeout );
+        }
+        if( this.httpClient == null ) {
+            this.httpClient = newHttpClient();
+        }
+    }
+
+    /**
+     * Get an integer property, checking it against a lower bound.
+     * @param props
+     * @param name
+     * @param defaultValue Value to use if the property isn't present.
+     * @param minimum Smallest acceptable value.
+     * @return The property value.
+     */
+    private static int getIntProperty( final Properties props, final String name,
+            final int defaultValue, final int minimum ) {
+        final int value = Integer.parseInt( props.getProperty( name, String.valueOf( defaultValue ) ).trim() );
+        if( value < minimum ) {
+            throw new IllegalArgumentException( name + " must be at least " + minimum );
+        }
+        return value;
+    }
+
+    /**
+     * Get a property whose (case-insensitive) value must be one of a fixed set of choices.
+     * @param props
+     * @param name
+     * @param defaultValue Value to use if the property isn't present; also an acceptable choice.
+     * @param otherChoices The other acceptable choices.
+     * @return The property value, in lower case.
+     */
+    private static String getChoiceProperty( final Properties props, final String name,
+            final String defaultValue, final String... otherChoices ) {
+        final String value = props.getProperty( name, defaultValue ).trim().toLowerCase();
+        if( value.equals( defaultValue ) ) return value;
+        for( String choice : otherChoices ) {
+            if( value.equals( choice ) ) return value;
+        }
+        throw new IllegalArgumentException( "Unknown " + name + ": " + value );
+    }
+
    /**
      * Execute the link checker.
      * @param url: The URL of the page whose links we are going to check.
@@ -142,70 +566,645 @@ public final class LinkCheckerMT {
     public void execute( String url ) throws Exception {
         final long startTime = System.currentTimeMillis();
         long endTime = startTime;
+        if( !this.batchMember ) this.startMetrics();
         try {
 
-            StringBuilder page = PageReader.readPage(new URI(url));
-            LinkCheckerMT.getLinksFromPage(page.toString(), linksToTest);
-            
-            // Kick off the link checker threads and wait for completion of all tasks.
-            execService = this.launchLinkCheckers( MAX_THREADS );
+            // Kick off the link checker threads first so that links are
+            // checked while the page (or the site, when crawling) is still
+            // being read, and the queue of links to test is drained as it
+            // fills. Reading counts as outstanding work so the checkers
+            // don't quit early.
+            this.completion.register();
+            this.launchLinkCheckers();
+            try {
+                this.readLinks(url);
+            }
+            catch( Exception e ) {
+                this.cancelLinkChecker();
+                throw e;
+            }
+            finally {
+                this.completion.arrive();
+            }
+
+            // Wait for completion of all tasks.
             boolean completed = this.waitForCompletion( execService );
+            if( this.progress != null ) this.progress.stop();
             if( !completed ) {
                 System.out.println( "Warning: not all tasks finished." );
                 this.cancelLinkChecker();
             }
             
-            this.setBadLinkCount( this.badLinks.size() );
+            // Checks still going on past the deadline can't resolve a
+            // link any more once it has been claimed here as timed out.
+            final List<String> timedOut = new ArrayList<String>();
+            final List<String> badLinksFound = new ArrayList<String>();
+            synchronized( this.resolutionLock ) {
+                if( !completed ) {
+                    for( String link : this.getUnresolvedLinks() ) {
+                        if( getLinkInfo( link ).resolved.compareAndSet( false, true ) ) timedOut.add( link );
+                    }
+                }
+                String badLink;
+                while( ( badLink = this.badLinks.poll() ) != null ) badLinksFound.add( badLink );
+            }
+
+            this.setBadLinkCount( badLinksFound.size() );
 
-            for( int i = 0; i < this.getBadLinkCount(); ++i ) {
-                String badLink = this.badLinks.poll();
-                if( badLink == null ) break;
+            for( String badLink : badLinksFound ) {
                 System.out.println( "Bad link: " + badLink );
             }
 
-            if( this.linksToTest.size() > 0 ) {
-                System.out.println( this.linksToTest.size() + " links untested!!" );
+            if( !completed ) {
+                for( String link : timedOut ) {
+                    final String decodedLink = URLDecoder.decode( link, DEFAULT_ENCODING );
+                    writeResult( link, "timed out", 0, -1L );
+                    for( int i = getLinkInfo( link ).occurrences.get(); i > 0; --i ) {
+                        System.out.println( "Timed out: " + decodedLink );
+                        this.timedOutCount++;
+                    }
+                }
             }
             else {
                 System.out.println( "Finished testing all links." );
             }
+
+            if( this.linkStatusCache != null && !this.batchMember ) {
+                this.linkStatusCache.save();
+            }
         }        
         catch( Exception e ) {
             throw e;
         }
+        finally {
+            if( !this.batchMember ) this.stopMetrics();
+            if( this.progress != null ) this.progress.stop();
+            if( this.resultWriter != null && !this.batchMember ) {
+                this.resultWriter.close();
+            }
+        }
         
         endTime = System.currentTimeMillis();
         final double seconds = ((double)( endTime - startTime))/MILLISECS_PER_SECOND;
         System.out.format( "Total time: %g seconds.%n", seconds );
+        if( this.crawlDepth > 0 ) {
+            System.out.format( "Total number of pages crawled: %d%n", this.pagesCrawled );
+            if( this.pagesNotCrawled > 0 ) {
+                System.out.format( "Total number of pages not crawled (crawl limits reached): %d%n", this.pagesNotCrawled );
+            }
+            if( this.pagesNotHtml > 0 ) {
+                System.out.format( "Total number of pages not crawled (not HTML): %d%n", this.pagesNotHtml );
+            }
+            if( this.pagesDisallowed > 0 ) {
+                System.out.format( "Total number of pages not crawled (disallowed by robots.txt): %d%n", this.pagesDisallowed );
+            }
+        }
+        if( SITEMAP_DISCOVERY.equals( this.discovery ) ) {
+            System.out.format( "Total number of sitemaps read: %d%n", this.sitemapsRead );
+        }
         System.out.format( "Total number of links checked: %d%n", this.getLinksTested() );
+        if( this.linksDisallowed.get() > 0 ) {
+            System.out.format( "Total number of links not checked (disallowed by robots.txt): %d%n", this.linksDisallowed.get() );
+        }
+        if( this.cacheHits.get() > 0 ) {
+            System.out.format( "Total number of links answered from cache: %d%n", this.cacheHits.get() );
+        }
+        if( this.getLinkCount() > this.linkInfo.size() ) {
+            System.out.format( "Total number of duplicate links not rechecked: %d%n",
+                    this.getLinkCount() - this.linkInfo.size() );
+        }
+        if( this.getRetries() > 0 ) {
+            System.out.format( "Total number of retries: %d%n", this.getRetries() );
+        }
         System.out.format( "Total number of bad links found: %d%n", this.getBadLinkCount() );
+        if( this.timedOutCount > 0 ) {
+            System.out.format( "Total number of links timed out: %d%n", this.timedOutCount );
+        }
         if( this.getLinksTested() > 0 ) System.out.format( "Avg. time per link check: %g seconds.%n", seconds/this.getLinksTested() );
+        this.printLatencies();
+        if( !this.batchMember ) printPageFetches();
         
     }
 
     /**
-     * Cancel execution of the threads immediately (if possible)
+     * Print the latency percentiles of the network probes, overall and for
+     * the hosts that took up the most time in all.
+     */
+    private void printLatencies() {
+        if( this.latency.getCount() == 0 ) return;
+        System.out.println( "Probe latency in milliseconds (p50 / p90 / p99 / max):" );
+        System.out.println( formatLatency( "All hosts", this.latency, "probes" ) );
+        final List<Map.Entry<String,LatencyHistogram>> hosts =
+                new ArrayList<Map.Entry<String,LatencyHistogram>>( this.hostLatencies.entrySet() );
+        Collections.sort( hosts, new Comparator<Map.Entry<String,LatencyHistogram>>() {
+            @Override
+            public int compare( Map.Entry<String,LatencyHistogram> a, Map.Entry<String,LatencyHistogram> b ) {
+                return Long.compare( b.getValue().getTotal(), a.getValue().getTotal() );
+            }
+        });
+        for( int i = 0; i < hosts.size() && i < HOSTS_TO_REPORT; ++i ) {
+            System.out.println( formatLatency( hosts.get( i ).getKey(), hosts.get( i ).getValue(), "probes" ) );
+        }
+    }
+
+    /**
+     * Print what the shared page fetcher has read in this run: pages, bytes
+     * and the time to first byte and in all, overall and for each host.
+     */
+    private static void printPageFetches() {
+        final PageFetcher.Stats stats = PageFetcher.shared().getStats();
+        if( stats.getFetches() + stats.getFailures() == 0 ) return;
+        System.out.format( "Pages read: %d (%d failed), %d bytes on the wire, %d bytes decoded%n",
+                stats.getFetches(), stats.getFailures(), stats.getWireBytes(), stats.getDecodedBytes() );
+        System.out.println( "Page read time in milliseconds (p50 / p90 / p99 / max):" );
+        System.out.println( formatLatency( "First byte", stats.getFirstByteNanos(), "pages" ) );
+        System.out.println( formatLatency( "Whole page", stats.getTotalNanos(), "pages" ) );
+        final Map<String,PageFetcher.Stats> hosts = PageFetcher.shared().getHostStats();
+        if( hosts.size() > 1 ) {
+            for( Map.Entry<String,PageFetcher.Stats> host : hosts.entrySet() ) {
+                System.out.println( formatLatency( host.getKey(), host.getValue().getTotalNanos(), "pages" ) );
+            }
+        }
+    }
+
+    private static String formatLatency( final String label, final LatencyHistogram histogram, final String what ) {
+        final double NANOS_PER_MILLISEC = 1000000.0D;
+        return String.format( "  %-40s %9.1f / %9.1f / %9.1f / %9.1f  (%d %s, %.2f seconds in all)",
+                label,
+                histogram.getPercentile( 50 ) / NANOS_PER_MILLISEC,
+                histogram.getPercentile( 90 ) / NANOS_PER_MILLISEC,
+                histogram.getPercentile( 99 ) / NANOS_PER_MILLISEC,
+                histogram.getMax() / NANOS_PER_MILLISEC,
+                histogram.getCount(), what,
+                histogram.getTotal() / NANOS_PER_MILLISEC / MILLISECS_PER_SECOND );
+    }
+
+    /**
+     * Record how long a network probe took, overall and against its host.
+     * @param host
+     * @param nanos
+     */
+    private void recordLatency( final String host, final long nanos ) {
+        this.latency.record( nanos );
+        this.metrics.latency.record( nanos );
+        LatencyHistogram histogram = this.hostLatencies.get( host );
+        if( histogram == null ) {
+            final LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = this.hostLatencies.putIfAbsent( host, newHistogram );
+            if( histogram == null ) histogram = newHistogram;
+        }
+        histogram.record( nanos );
+    }
+
+    /**
+     * Check the links on each of a list of pages in turn, reporting on each
+     * page separately. The pages share one thread pool, one link status
+     * cache (an in-memory one if LINK_CACHE isn't given, so a link found on
+     * several pages is only probed once), one host scheduler and one HTTP
+     * client (and so one pool of open connections).
+     * @param props The tuning properties (see {@link #configure(Properties)}).
+     * @param urls The URLs of the pages whose links we are going to check.
+     * @throws Exception
+     */
+    public void executeBatch( final Properties props, final List<String> urls ) throws Exception {
+        final long startTime = System.currentTimeMillis();
+        this.configure( props );
+        if( this.linkStatusCache == null ) {
+            this.linkStatusCache = new LinkStatusCache( null,
+                    TimeUnit.HOURS.toMillis( getIntProperty( props, "LINK_CACHE_TTL", DEFAULT_LINK_CACHE_TTL, 0 ) ),
+                    TimeUnit.MINUTES.toMillis( getIntProperty( props, "LINK_CACHE_FAILED_TTL", DEFAULT_LINK_CACHE_FAILED_TTL, 0 ) ),
+                    getIntProperty( props, "LINK_CACHE_ENTRIES", DEFAULT_LINK_CACHE_ENTRIES, 1 ) );
+        }
+        this.sharedExecService = VIRTUAL_ENGINE.equals( this.engine )
+                ? Executors.newCachedThreadPool() // dispatchers only
+                : Executors.newFixedThreadPool( MAX_THREADS );
+        this.startMetrics();
+        int pagesFailed = 0;
+        int totalBadLinks = 0;
+        try {
+            for( String url : urls ) {
+                System.out.println( "Page: " + url );
+                LinkCheckerMT lc = new LinkCheckerMT();
+                lc.configure( props, this );
+                try {
+                    lc.execute( url );
+                    totalBadLinks += lc.getBadLinkCount();
+                }
+                catch( Exception e ) {
+                    System.out.println( "Unable to check page: " + e.toString() );
+                    pagesFailed++;
+                }
+                System.out.println();
+            }
+            this.linkStatusCache.save();
+        }
+        finally {
+            this.sharedExecService.shutdownNow();
+            this.stopMetrics();
+            if( this.resultWriter != null ) {
+                this.resultWriter.close();
+            }
+        }
+        final double seconds = ((double)( System.currentTimeMillis() - startTime ))/MILLISECS_PER_SECOND;
+        System.out.format( "Finished testing %d pages.%n", urls.size() );
+        System.out.format( "Total time for all pages: %g seconds.%n", seconds );
+        if( pagesFailed > 0 ) {
+            System.out.format( "Total number of pages that could not be checked: %d%n", pagesFailed );
+        }
+        System.out.format( "Total number of bad links found on all pages: %d%n", totalBadLinks );
+        printPageFetches();
+    }
+
+    /**
+     * Read a list of URLs from a file, one per line. Blank lines and lines
+     * starting with '#' are ignored.
+     * @param listPath
+     * @return The URLs.
+     * @throws Exception
+     */
+    public List<String> getURLs( String listPath ) throws Exception {
+        final ArrayList<String> urls = new ArrayList<String>();
+        final BufferedReader reader = new BufferedReader( new InputStreamReader(
+                new FileInputStream( new File( listPath ) ), DEFAULT_ENCODING ) );
+        try {
+            String line;
+            while( ( line = reader.readLine() ) != null ) {
+                line = line.trim();
+                if( line.length() > 0 && !line.startsWith( "#" ) ) {
+                    urls.add( line );
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return urls;
+    }
+
+    /**
+     * Cancel execution of the threads immediately (if possible). A shared
+     * thread pool is left running for the next page; its threads stop
+     * working on this page as soon as their current checks are done.
      * @param es
      * @throws Exception
      */
     public void cancelLinkChecker() throws Exception {
-        this.execService.shutdownNow();
+        this.stopping = true;
+        if( this.execService != this.sharedExecService ) {
+            this.execService.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The distinct links not yet resolved: those in progress,
+     * waiting on the queue and waiting to be retried, and any caught
+     * between one of those and the next.
+     */
+    private Set<String> getUnresolvedLinks() {
+        final LinkedHashSet<String> unresolved = new LinkedHashSet<String>( this.linksInProgress );
+        unresolved.addAll( this.linksToTest );
+        for( DelayedLink delayedLink : this.retryQueue ) {
+            unresolved.add( delayedLink.getLink() );
+        }
+        for( Map.Entry<String,LinkInfo> entry : this.linkInfo.entrySet() ) {
+            if( !entry.getValue().resolved.get() ) unresolved.add( entry.getKey() );
+        }
+        for( Iterator<String> it = unresolved.iterator(); it.hasNext(); ) {
+            if( getLinkInfo( it.next() ).resolved.get() ) it.remove();
+        }
+        return unresolved;
+    }
+
+    /**
+     * Start the link checker threads of the configured engine.
+     * @throws Exception
+     */
+    private void launchLinkCheckers() throws Exception {
+        if( this.progressInterval > 0 && this.progress == null ) {
+            this.progress = new ProgressReporter( this.completion );
+            this.progress.start( this.progressInterval );
+        }
+        if( VIRTUAL_ENGINE.equals( this.engine ) ) {
+            execService = this.launchVirtualLinkCheckers( this.maxConcurrency );
+        }
+        else {
+            execService = this.launchLinkCheckers( MAX_THREADS );
+        }
+    }
+
+    /**
+     * Read the page (or, in crawl mode, the site) and queue the links found.
+     * @param url: The URL of the page.
+     * @throws Exception
+     */
+    private void readLinks( final String url ) throws Exception {
+        if( SITEMAP_DISCOVERY.equals( this.discovery ) ) {
+            this.readSitemapLinks(url);
+        }
+        else if( this.crawlDepth > 0 ) {
+            this.crawl(url);
+        }
+        else {
+            this.getLinksFromPage(new URI(url), null, null, null);
+        }
+    }
+
+    /**
+     * Queue the pages listed in the sitemaps of the page's site: those that
+     * the site's robots.txt names or, if it names none, /sitemap.xml.
+     * @param url: The URL of a page on the site.
+     * @throws Exception if none of the sitemaps can be read.
+     */
+    private void readSitemapLinks( final String url ) throws Exception {
+        final URI uri = new URI( url );
+        final String origin = RobotsCache.getOrigin( uri );
+        if( origin == null ) throw new IllegalArgumentException( "Not an HTTP URL: " + url );
+        final List<String> sitemaps = new ArrayList<String>( this.robots.getSitemaps( uri ) );
+        if( sitemaps.isEmpty() ) sitemaps.add( origin + "/sitemap.xml" );
+        final SitemapReader reader = new SitemapReader( this.maxSitemaps );
+        Exception failure = null;
+        boolean anyRead = false;
+        for( String sitemap : sitemaps ) {
+            try {
+                this.sitemapsRead += reader.read( new URI( sitemap ), new SitemapReader.Listener() {
+                    @Override
+                    public void pageFound( String pageUrl, String listedIn ) throws Exception {
+                        pageBeingRead = listedIn;
+                        acceptLink( pageUrl, null );
+                    }
+                });
+                anyRead = true;
+            } catch( Exception e ) {
+                System.err.println( e.toString() + " on " + sitemap );
+                failure = e;
+            }
+        }
+        if( !anyRead ) throw failure;
+    }
+
+    /**
+     * Read a page and queue the links found on it, using the configured extractor.
+     * @param uri The page.
+     * @param baseUri URI of the page, against which relative links are
+     * resolved; if <tt>null</tt>, relative links are ignored.
+     * @param pageLinks If not <tt>null</tt>, receives every link found on the page (canonical form).
+     * @param contentTypes If not <tt>null</tt>, the page is only read if its
+     * Content-Type (as sent, before the body is read) is one of these or unknown.
+     * @return <tt>false</tt> if the page was not read because of its content type.
+     * @throws Exception if the page can't be read.
+     */
+    private boolean getLinksFromPage(final URI uri, final String baseUri, final List<String> pageLinks,
+            final String[] contentTypes) throws Exception {
+        this.pageBeingRead = uri.toString();
+        if( STREAMING_EXTRACTOR.equals( this.extractor ) ) {
+            final URI base = baseUri == null ? null : new URI( baseUri );
+            final PageReader.PageStream page = PageReader.openStream( uri );
+            if( !PageReader.isMediaType( page.getContentType(), contentTypes ) ) {
+                page.abandon();
+                return false;
+            }
+            final InputStream is = new CountingInputStream( page, this.metrics.bytesRead );
+            try {
+                new LinkScanner()
+                        .setCharset( page.getCharset() )
+                        .addLinkAttribute( "A", "href" )
+                        .addLinkAttribute( "OPTION", "value" )
+                        .scan( is, new LinkScanner.Listener() {
+                            @Override
+                            public void linkFound( String tag, String value ) throws Exception {
+                                if( base != null ) {
+                                    try {
+                                        value = base.resolve( encodeLink( value.trim() ) ).toString();
+                                    } catch( IllegalArgumentException e ) {
+                                        return; // not a valid URI
+                                    }
+                                }
+                                acceptLink( value, pageLinks );
+                            }
+                        });
+            }
+            finally {
+                is.close();
+            }
+        }
+        else {
+            final PageReader.Content content = PageFetcher.shared().fetch(uri, contentTypes);
+            if( content == null ) return false;
+            this.metrics.bytesRead.add( content.getBytes().remaining() );
+            this.getLinksFromPage(content.getText().toString(), baseUri, pageLinks);
+        }
+        return true;
     }
 
     /**
      * Get all HTTP links from web page. Results are placed in linksToTest.
+     * @param page The page content.
+     * @param baseUri URI of the page, against which relative links are
+     * resolved; if <tt>null</tt>, relative links are ignored.
+     * @param pageLinks If not <tt>null</tt>, receives every link found on the page (canonical form).
      */
-    private static void getLinksFromPage(String page,
-            ConcurrentLinkedQueue<String> linksToTest) throws Exception {
+    private void getLinksFromPage(String page, String baseUri, List<String> pageLinks) throws Exception {
         
-        Document document = Jsoup.parse(page);
-        extractLinksFromTags(document, "A", "href", linksToTest);
-        extractLinksFromTags(document, "OPTION", "value", linksToTest);
+        Document document = baseUri == null ? Jsoup.parse(page) : Jsoup.parse(page, baseUri);
+        extractLinksFromTags(document, "A", "href", baseUri != null, pageLinks);
+        extractLinksFromTags(document, "OPTION", "value", baseUri != null, pageLinks);
+
+    }
+
+    /**
+     * Crawl the site, starting from the given page and following links
+     * to other pages on the same host down to <tt>crawlDepth</tt> levels.
+     * Links with the extension of a file that isn't a web page are not
+     * followed, and a page (other than the starting page) whose
+     * Content-Type isn't HTML is dropped before its body is read.
+     * The links found on every page crawled are queued for testing. The
+     * frontier (pages waiting to be crawled) is held to <tt>maxFrontier</tt>
+     * entries, and the set of pages already seen is held as 64-bit
+     * fingerprints, at most <tt>maxVisited</tt> of them, so that the crawl
+     * itself takes a bounded amount of memory however large the site;
+     * pages that don't fit are counted and skipped. (The links found are
+     * checked while the crawl goes on, but each distinct link is
+     * remembered in <tt>linkInfo</tt> until the run ends.)
+     * @param url: The URL of the page to start from.
+     * @throws Exception if the starting page can't be read.
+     */
+    private void crawl( final String url ) throws Exception {
+        final String startPage = canonicalizeLink( url, this.trailingSlash );
+        final String site = getHost( startPage );
+        final ArrayDeque<CrawlPage> frontier = new ArrayDeque<CrawlPage>();
+        final HashSet<Long> visited = new HashSet<Long>();
+        final ArrayList<String> pageLinks = new ArrayList<String>();
+        if( this.respectRobots ) applyCrawlDelay( startPage );
+        frontier.add( new CrawlPage( startPage, 0 ) );
+        visited.add( fingerprint( startPage ) );
+        while( !frontier.isEmpty() ) {
+            final CrawlPage crawlPage = frontier.poll();
+            pageLinks.clear();
+            // The page reads take their turn with the checks against the site.
+            long wait;
+            while( ( wait = this.hostScheduler.tryAcquire( site ) ) != 0 ) {
+                LockSupport.parkNanos( wait );
+            }
+            try {
+                // Past the starting page, only HTML is read: a link without
+                // a telling extension may still lead to an image or the like.
+                if( !this.getLinksFromPage( new URI( crawlPage.url ), crawlPage.url, pageLinks,
+                        crawlPage.depth == 0 ? null : CRAWLABLE_TYPES ) ) {
+                    this.pagesNotHtml++;
+                    continue;
+                }
+            } catch( Exception e ) {
+                if( crawlPage.depth == 0 ) throw e;
+                continue; // the page is queued as a link too, so it will be reported
+            } finally {
+                this.hostScheduler.release( site );
+            }
+            this.pagesCrawled++;
+            if( crawlPage.depth >= this.crawlDepth ) continue;
+            for( String link : pageLinks ) {
+                if( !site.equals( getHost( link ) ) || !isCrawlable( link ) ) continue;
+                if( visited.size() >= this.maxVisited ) {
+                    if( !visited.contains( fingerprint( link ) ) ) this.pagesNotCrawled++;
+                    continue;
+                }
+                if( !visited.add( fingerprint( link ) ) ) continue;
+                if( this.respectRobots && !this.robots.isAllowed( new URI( link ) ) ) {
+                    this.pagesDisallowed++;
+                    continue;
+                }
+                if( frontier.size() >= this.maxFrontier ) {
+                    this.pagesNotCrawled++;
+                    continue;
+                }
+                frontier.add( new CrawlPage( link, crawlPage.depth + 1 ) );
+            }
+        }
+    }
+
+    // A page waiting to be crawled and how many links away from the starting page it is.
+    private static final class CrawlPage {
+        final String url;
+        final int depth;
+        CrawlPage( final String url, final int depth ) {
+            this.url = url;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * @param link
+     * @return <tt>true</tt> if the link looks like it leads to a web page
+     * (rather than, say, a PDF or an image) and so is worth crawling.
+     */
+    private static boolean isCrawlable( final String link ) {
+        final String path = link.toLowerCase();
+        final int dot = path.lastIndexOf( '.' );
+        if( dot == -1 || dot < path.lastIndexOf( '/' ) ) return true;
+        return !NOT_CRAWLABLE.contains( path.substring( dot + 1 ) );
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the link, used in place of the link itself to
+     * keep track of the pages already seen.
+     * @param link
+     * @return The fingerprint.
+     */
+    private static long fingerprint( final String link ) {
+        long hash = 0xcbf29ce484222325L;
+        for( int i = 0, n = link.length(); i < n; ++i ) {
+            hash ^= link.charAt( i );
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
 
+    /**
+     * Queue a link for testing unless an equivalent link has already been
+     * queued, in which case just count the extra occurrence.
+     * With ROBOTS=respect, the host's Crawl-delay is put into effect first.
+     * @param link
+     * @return The link in canonical form.
+     * @throws InterruptedException if interrupted waiting for the host's robots.txt.
+     */
+    private String enqueueLink( final String link ) throws InterruptedException {
+        final String canonicalLink = canonicalizeLink( link, this.trailingSlash );
+        final LinkInfo info = this.linkInfo.putIfAbsent( canonicalLink, new LinkInfo( this.pageBeingRead ) );
+        if( info == null ) {
+            if( this.respectRobots ) applyCrawlDelay( canonicalLink );
+            this.completion.register();
+            this.metrics.linksQueued.increment();
+            this.linksToTest.add( canonicalLink );
+        }
+        else {
+            info.occurrences.incrementAndGet();
+        }
+        this.setLinkCount( this.getLinkCount() + 1 );
+        return canonicalLink;
+    }
+
+    /**
+     * @param link A (canonical) link from the queue.
+     * @return What we know about the link.
+     */
+    private LinkInfo getLinkInfo( final String link ) {
+        LinkInfo info = this.linkInfo.get( link );
+        if( info == null ) {
+            final LinkInfo newInfo = new LinkInfo( null );
+            info = this.linkInfo.putIfAbsent( link, newInfo );
+            if( info == null ) info = newInfo;
+        }
+        return info;
+    }
+
+    /**
+     * Put a link into canonical form so that equivalent spellings of the
+     * same target compare equal: the scheme and host are lower-cased, a
+     * default port (80 for http, 443 for https) is dropped, the fragment is
+     * dropped, an empty path becomes "/" and, if asked for, a trailing
+     * slash is removed from any other path.
+     * @param link
+     * @param trailingSlash KEEP_TRAILING_SLASH or STRIP_TRAILING_SLASH.
+     * @return The canonical link; the link unchanged if it can't be parsed.
+     */
+    static String canonicalizeLink( final String link, final String trailingSlash ) {
+        try {
+            final URI uri = new URI( link.trim() );
+            if( uri.isOpaque() || uri.getScheme() == null || uri.getHost() == null ) {
+                return link;
+            }
+            final String scheme = uri.getScheme().toLowerCase();
+            final String host = uri.getHost().toLowerCase();
+            int port = uri.getPort();
+            if( ( port == 80 && scheme.equals( "http" ) ) || ( port == 443 && scheme.equals( "https" ) ) ) {
+                port = -1;
+            }
+            String path = uri.getRawPath();
+            if( path == null || path.length() == 0 ) {
+                path = "/";
+            }
+            else if( STRIP_TRAILING_SLASH.equals( trailingSlash ) ) {
+                while( path.length() > 1 && path.endsWith( "/" ) ) {
+                    path = path.substring( 0, path.length() - 1 );
+                }
+            }
+            final StringBuilder buf = new StringBuilder();
+            buf.append( scheme ).append( "://" );
+            if( uri.getRawUserInfo() != null ) buf.append( uri.getRawUserInfo() ).append( '@' );
+            buf.append( host );
+            if( port != -1 ) buf.append( ':' ).append( port );
+            buf.append( path );
+            if( uri.getRawQuery() != null ) buf.append( '?' ).append( uri.getRawQuery() );
+            return buf.toString();
+        } catch( Exception e ) {
+            return link;
+        }
     }
 
     // Number of links where connectivity failed. Not thread safe and not shared.
     private int badLinkCount = 0;
+
+    // Number of link occurrences still unresolved at the deadline. Not thread safe and not shared.
+    private int timedOutCount = 0;
     public int getBadLinkCount() {
         return this.badLinkCount;
     }
@@ -213,7 +1212,7 @@ public final class LinkCheckerMT {
         this.badLinkCount = count;
     }
 
-    // Number of links that will be tested. Not thread safe and not shared.
+    // Number of links found on the page, duplicates included. Not thread safe and not shared.
     private int linkCount = 0;
     public int getLinkCount() {
         return this.linkCount;
@@ -222,8 +1221,8 @@ public final class LinkCheckerMT {
         this.linkCount = count;
     }
 
-    // Number of links actually tested; ideally, should be equal to linkCount
-    // when the program is complete. Thread safe and shared.
+    // Number of links actually tested; ideally, should be equal to the number
+    // of distinct links when the program is complete. Thread safe and shared.
     private AtomicInteger linksTested = new AtomicInteger(0);
     public int getLinksTested() {
         return this.linksTested.get();
@@ -232,6 +1231,12 @@ public final class LinkCheckerMT {
         return this.linksTested.getAndIncrement();
     }
 
+    // Number of retries scheduled for failed links. Thread safe and shared.
+    private final AtomicInteger retries = new AtomicInteger(0);
+    public int getRetries() {
+        return this.retries.get();
+    }
+
     /**
      * Spawn the threads that will test the link connectivity.
      * @param numTasks
@@ -240,9 +1245,11 @@ public final class LinkCheckerMT {
      */
     public ExecutorService launchLinkCheckers(int numTasks) throws Exception {
         final int START_INTERVAL = 500;
-        ExecutorService es = Executors.newFixedThreadPool(numTasks);
+        final boolean shared = this.sharedExecService != null;
+        ExecutorService es = shared ? this.sharedExecService : Executors.newFixedThreadPool(numTasks);
         for (int i = 0; i < numTasks; ++i) {
             es.execute(new LinkCheckerRunnable());
+            if (shared) continue; // the pool's threads are already warmed up
             try {
                 Thread.sleep(START_INTERVAL);
             } catch (InterruptedException e) {
@@ -252,6 +1259,19 @@ public final class LinkCheckerMT {
         return es;
     }
 
+    /**
+     * Spawn the dispatcher that runs each link check on its own virtual
+     * thread, with at most <tt>maxConcurrency</tt> checks in progress.
+     * @param maxConcurrency
+     * @return ExecutorService holding the dispatcher.
+     * @throws Exception
+     */
+    public ExecutorService launchVirtualLinkCheckers(int maxConcurrency) throws Exception {
+        ExecutorService es = this.sharedExecService != null ? this.sharedExecService : Executors.newSingleThreadExecutor();
+        es.execute(new LinkDispatcherRunnable(maxConcurrency));
+        return es;
+    }
+
     /**
      * Wait for all the threads to complete.
      * @param es
@@ -259,32 +1279,285 @@ public final class LinkCheckerMT {
      * @throws Exception
      */
     public boolean waitForCompletion( ExecutorService es ) throws Exception {
-        es.shutdown();
-        boolean done = es.awaitTermination(WAIT_FOR_COMPLETION_IN_SECONDS, TimeUnit.SECONDS);
+        if( es != this.sharedExecService ) es.shutdown();
+        boolean done = this.completion.awaitCompletion( TimeUnit.SECONDS.toNanos( this.deadline ) );
         System.out.println( "Shutdown complete?: " + (done?"yes":"no") );
         return done;
     }
-    
+
     /**
-     * Runnable task that tests HTTP links found in a web page. Contains
-     * a loop that first removes a link value from the queue, tests the
-     * connectivity of the link and if the connectivity fails, adds the
-     * link value to list of bad links. Task is finished when the link
-     * queue is empty.
+     * Keeps count of the distinct links that have been queued but not yet
+     * resolved (found to be okay or bad; a link waiting to be retried is
+     * not resolved). Lets the main thread wait for exactly the moment the
+     * last link is resolved.
      */
-    class LinkCheckerRunnable implements Runnable {
+    static final class CompletionTracker {
+        private final AtomicInteger outstanding = new AtomicInteger(0);
 
-        private String linkToTest = null;
+        void register() {
+            outstanding.incrementAndGet();
+        }
 
-        @Override
-        public void run() {
-            System.out.println( Thread.currentThread().getName() + " thread starting..." );
-            LOOP: while ( true ) {
+        void arrive() {
+            if( outstanding.decrementAndGet() == 0 ) {
+                synchronized( this ) {
+                    notifyAll();
+                }
+            }
+        }
 
-                try {
-                    // Remove a link from the queue...
-                    linkToTest = linksToTest.remove();
-                    System.out.println( linksToTest.size() + " links remaining to be tested.");
+        boolean isDone() {
+            return outstanding.get() == 0;
+        }
+
+        int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * Wait until every registered link has been resolved.
+         * @param timeout in nanoseconds.
+         * @return <tt>true</tt> if every link was resolved; <tt>false</tt> if the timeout came first.
+         * @throws InterruptedException
+         */
+        synchronized boolean awaitCompletion( final long timeout ) throws InterruptedException {
+            final long deadline = System.nanoTime() + timeout;
+            while( !isDone() ) {
+                final long remaining = deadline - System.nanoTime();
+                if( remaining <= 0 ) return false;
+                TimeUnit.NANOSECONDS.timedWait( this, remaining );
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Start the metrics endpoints that were asked for: the HTTP endpoint
+     * and/or the MXBean.
+     * @throws Exception if the port can't be bound or the MXBean registered.
+     */
+    private void startMetrics() throws Exception {
+        if( this.metricsPort > 0 ) {
+            this.metricsServer = HttpServer.create(
+                    new InetSocketAddress( InetAddress.getLoopbackAddress(), this.metricsPort ), 0 );
+            this.metricsServer.createContext( "/metrics", new HttpHandler() {
+                @Override
+                public void handle( HttpExchange exchange ) throws java.io.IOException {
+                    final byte[] body = metrics.toText().getBytes( DEFAULT_ENCODING );
+                    exchange.getResponseHeaders().set( "Content-Type", "text/plain; charset=utf-8" );
+                    exchange.sendResponseHeaders( 200, body.length );
+                    final OutputStream os = exchange.getResponseBody();
+                    try {
+                        os.write( body );
+                    } finally {
+                        os.close();
+                    }
+                }
+            });
+            this.metricsServer.start();
+        }
+        if( this.metricsJmx ) {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            this.metricsName = new ObjectName( METRICS_MBEAN_NAME );
+            server.registerMBean( this.metrics, this.metricsName );
+        }
+    }
+
+    private void stopMetrics() {
+        if( this.metricsServer != null ) {
+            this.metricsServer.stop( 0 );
+            this.metricsServer = null;
+        }
+        if( this.metricsName != null ) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean( this.metricsName );
+            } catch( Exception e ) {
+                System.err.println( e.toString() );
+            }
+            this.metricsName = null;
+        }
+    }
+
+    /**
+     * Live metrics of a run, as exposed over JMX.
+     */
+    public interface MetricsMXBean {
+        long getLinksQueued();
+        long getLinksInFlight();
+        long getLinksChecked();
+        long getBadLinks();
+        long getRetries();
+        long getBytesRead();
+        double getLatencyP50Millis();
+        double getLatencyP90Millis();
+        double getLatencyP99Millis();
+        double getLatencyMaxMillis();
+    }
+
+    /**
+     * Live metrics of a run (all the pages of a batch). Workers bump
+     * striped counters, which are cheap to update from many threads at
+     * once; the counters are only summed when somebody asks.
+     */
+    static final class Metrics implements MetricsMXBean {
+        final LongAdder linksQueued = new LongAdder();
+        final LongAdder linksInFlight = new LongAdder();
+        final LongAdder linksChecked = new LongAdder();
+        final LongAdder badLinks = new LongAdder();
+        final LongAdder retries = new LongAdder();
+        final LongAdder bytesRead = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        @Override public long getLinksQueued() { return linksQueued.sum(); }
+        @Override public long getLinksInFlight() { return linksInFlight.sum(); }
+        @Override public long getLinksChecked() { return linksChecked.sum(); }
+        @Override public long getBadLinks() { return badLinks.sum(); }
+        @Override public long getRetries() { return retries.sum(); }
+        @Override public long getBytesRead() { return bytesRead.sum(); }
+        @Override public double getLatencyP50Millis() { return latency.getPercentile( 50 ) / 1e6D; }
+        @Override public double getLatencyP90Millis() { return latency.getPercentile( 90 ) / 1e6D; }
+        @Override public double getLatencyP99Millis() { return latency.getPercentile( 99 ) / 1e6D; }
+        @Override public double getLatencyMaxMillis() { return latency.getMax() / 1e6D; }
+
+        /**
+         * @return The metrics as "name value" lines.
+         */
+        String toText() {
+            final StringBuilder text = new StringBuilder();
+            text.append( "links_queued " ).append( getLinksQueued() ).append( '\n' );
+            text.append( "links_in_flight " ).append( getLinksInFlight() ).append( '\n' );
+            text.append( "links_checked " ).append( getLinksChecked() ).append( '\n' );
+            text.append( "bad_links " ).append( getBadLinks() ).append( '\n' );
+            text.append( "retries " ).append( getRetries() ).append( '\n' );
+            text.append( "bytes_read " ).append( getBytesRead() ).append( '\n' );
+            text.append( "probes " ).append( latency.getCount() ).append( '\n' );
+            text.append( "latency_p50_ms " ).append( getLatencyP50Millis() ).append( '\n' );
+            text.append( "latency_p90_ms " ).append( getLatencyP90Millis() ).append( '\n' );
+            text.append( "latency_p99_ms " ).append( getLatencyP99Millis() ).append( '\n' );
+            text.append( "latency_max_ms " ).append( getLatencyMaxMillis() ).append( '\n' );
+            return text.toString();
+        }
+    }
+
+    // Counts the bytes read through it into a (shared) counter.
+    private static final class CountingInputStream extends FilterInputStream {
+        private final LongAdder count;
+
+        CountingInputStream( final InputStream in, final LongAdder count ) {
+            super( in );
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws java.io.IOException {
+            final int b = super.read();
+            if( b != -1 ) count.increment();
+            return b;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws java.io.IOException {
+            final int n = super.read( b, off, len );
+            if( n > 0 ) count.add( n );
+            return n;
+        }
+    }
+
+    /**
+     * Prints a progress line every so often while the links are being
+     * checked: how many links have been resolved, how fast (over the last
+     * interval and overall), how many remain and, at the recent rate, how
+     * long they will take. Workers only bump a striped counter, so
+     * reporting costs them next to nothing; all the arithmetic and
+     * printing is done by a single ticker thread.
+     */
+    static final class ProgressReporter {
+        private final CompletionTracker completion;
+        private final LongAdder resolved = new LongAdder();
+        private ScheduledExecutorService ticker = null;
+        private long startTime;
+        private long lastTime;
+        private long lastResolved;
+
+        ProgressReporter( final CompletionTracker completion ) {
+            this.completion = completion;
+        }
+
+        void linkResolved() {
+            resolved.increment();
+        }
+
+        /**
+         * @param interval Seconds between reports.
+         */
+        synchronized void start( final int interval ) {
+            this.startTime = this.lastTime = System.nanoTime();
+            this.ticker = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+                @Override
+                public Thread newThread( Runnable r ) {
+                    final Thread t = new Thread( r, "progress" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            });
+            this.ticker.scheduleAtFixedRate( new Runnable() {
+                @Override
+                public void run() {
+                    report();
+                }
+            }, interval, interval, TimeUnit.SECONDS );
+        }
+
+        synchronized void stop() {
+            if( this.ticker != null ) {
+                this.ticker.shutdownNow();
+                this.ticker = null;
+            }
+        }
+
+        private void report() {
+            final long now = System.nanoTime();
+            final long done = resolved.sum();
+            final int remaining = completion.getOutstanding();
+            final double recentRate = ( done - lastResolved ) / ( ( now - lastTime ) / 1e9D );
+            final double overallRate = done / ( ( now - startTime ) / 1e9D );
+            final double rate = recentRate > 0 ? recentRate : overallRate;
+            lastTime = now;
+            lastResolved = done;
+            System.out.format( "Progress: %d links resolved (%.1f/s, %.1f/s overall), %d remaining, ETA %s%n",
+                    done, recentRate, overallRate, remaining,
+                    rate > 0 ? formatDuration( (long) Math.ceil( remaining / rate ) ) : "unknown" );
+        }
+
+        private static String formatDuration( final long seconds ) {
+            if( seconds < 60 ) return seconds + "s";
+            if( seconds < 3600 ) return String.format( "%dm%02ds", seconds / 60, seconds % 60 );
+            return String.format( "%dh%02dm", seconds / 3600, seconds % 3600 / 60 );
+        }
+    }
+
+    /**
+     * Runnable task that tests HTTP links found in a web page. Contains
+     * a loop that first removes a link value from the queue, tests the
+     * connectivity of the link and if the connectivity fails, adds the
+     * link value to list of bad links. Task is finished when every link
+     * has been resolved (or the deadline has passed).
+     */
+    class LinkCheckerRunnable implements Runnable {
+
+        private String linkToTest = null;
+
+        @Override
+        public void run() {
+            if( TRACING_THREADS ) System.out.println( Thread.currentThread().getName() + " thread starting..." );
+            LOOP: while ( true ) {
+
+                try {
+                    // Remove a link from the queue...
+                    linkToTest = takeLink();
+                    if( linkToTest == null ) {
+                        throw new NoSuchElementException();
+                    }
                 } catch (NoSuchElementException e) {
                     // No more links to test
                     break LOOP;
@@ -296,30 +1569,9 @@ public final class LinkCheckerMT {
  
                 try {
                     try {
-                        // Test the connectivity to the link. If it
-                        // fails, add link to bad link queue.
-                        incrementLinksTested();
-                        if (!checkLink(new URI(linkToTest))) {
-                            if (TRY_AGAIN) {
-                                try {
-                                    System.out.println(Thread.currentThread().getName() + " sleeping for 2nd check on " + linkToTest);
-                                    Thread.sleep(TRY_AGAIN_SLEEP_INTERVAL);
-                                } catch (InterruptedException e) {
-                                    // Do nothing
-                                }
-                                if (!checkLink(new URI(linkToTest))) {
-                                    throw new BadLinkException(linkToTest);
-                                }
-                            } else {
-                                throw new BadLinkException(linkToTest);
-                            }
-                        }
-                    } catch (BadLinkException e) {
-                        badLinks.add(URLDecoder.decode(linkToTest, DEFAULT_ENCODING));
-                        System.err.println(e.toString());
-                    } catch (Exception e) {
-                        badLinks.add(URLDecoder.decode(linkToTest, DEFAULT_ENCODING));
-                        System.err.println(e.toString());
+                        testLink( linkToTest );
+                    } finally {
+                        finishLink( linkToTest );
                     }
                 } catch (java.io.UnsupportedEncodingException e) {
                     System.err.println(e.toString());
@@ -332,32 +1584,712 @@ public final class LinkCheckerMT {
                 Thread.yield(); // Let someone else have a turn...
 
             } // end while
-            System.out.println( Thread.currentThread().getName() + " thread exiting..." );
+            if( TRACING_THREADS ) System.out.println( Thread.currentThread().getName() + " thread exiting..." );
         } // end run()
     }
 
     /**
-     * Check to see if we can connect to the link.
+     * Runnable task for the "virtual" engine. Removes links from the queue
+     * and hands each one to its own (virtual) thread, never allowing more
+     * than <tt>maxConcurrency</tt> checks to be in progress at once. Task is
+     * finished when every link has been resolved (or the deadline has
+     * passed) and every check it started has completed.
+     */
+    class LinkDispatcherRunnable implements Runnable {
+
+        private final int maxConcurrency;
+
+        LinkDispatcherRunnable( final int maxConcurrency ) {
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        @Override
+        public void run() {
+            final Semaphore permits = new Semaphore( maxConcurrency );
+            final ExecutorService workers = newVirtualThreadPerTaskExecutor();
+            try {
+                while( true ) {
+                    permits.acquire();
+                    final String link = takeLink();
+                    if( link == null ) {
+                        permits.release();
+                        break; // No more links to test
+                    }
+                    workers.execute( new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                testLink( link );
+                            } catch( Exception e ) {
+                                System.err.println( e.toString() );
+                            } finally {
+                                finishLink( link );
+                                permits.release();
+                            }
+                        }
+                    });
+                }
+                // Wait for the checks still in progress.
+                permits.acquire( maxConcurrency );
+                workers.shutdown();
+            } catch( InterruptedException e ) {
+                workers.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Per-host politeness scheduler that sits between the link queue and
+     * the link checking tasks. At most <tt>maxPerHost</tt> checks against
+     * the same host may be in progress at once, and successive checks
+     * against the same host are started at least <tt>minDelayMillis</tt>
+     * apart (or longer, for a host that asks for a longer Crawl-delay in
+     * its robots.txt). Callers never block in here; a refused link is simply put
+     * back on the queue so that links to other hosts can go ahead.
+     */
+    static final class HostScheduler {
+
+        // How long to back off when a host is at its connection limit
+        // (we don't know when one of its checks will finish).
+        private static final long BUSY_HOST_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos( 10 );
+
+        private static final class HostState {
+            int active = 0;
+            long nextStart = 0;
+            long minDelayNanos;
+        }
+
+        private final int maxPerHost;
+        private final long minDelayNanos;
+        private final ConcurrentHashMap<String,HostState> hosts = new ConcurrentHashMap<String,HostState>();
+
+        HostScheduler( final int maxPerHost, final long minDelayMillis ) {
+            this.maxPerHost = maxPerHost;
+            this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos( minDelayMillis );
+        }
+
+        private HostState getHostState( final String host ) {
+            HostState state = hosts.get( host );
+            if( state == null ) {
+                HostState newState = new HostState();
+                newState.minDelayNanos = minDelayNanos;
+                state = hosts.putIfAbsent( host, newState );
+                if( state == null ) state = newState;
+            }
+            return state;
+        }
+
+        /**
+         * Try to reserve a slot for a check against the given host.
+         * @param host
+         * @return 0 if the slot was granted; otherwise, the number of
+         * nanoseconds to wait before the host is worth trying again.
+         */
+        long tryAcquire( final String host ) {
+            HostState state = getHostState( host );
+            synchronized( state ) {
+                if( state.active >= maxPerHost ) {
+                    return Math.max( BUSY_HOST_WAIT_NANOS, state.minDelayNanos );
+                }
+                final long now = System.nanoTime();
+                final long wait = state.nextStart - now;
+                if( state.nextStart != 0 && wait > 0 ) {
+                    return wait;
+                }
+                state.active++;
+                state.nextStart = now + state.minDelayNanos;
+                return 0;
+            }
+        }
+
+        /**
+         * Space the checks against a host further apart than the
+         * scheduler's minimum delay (never closer).
+         * @param host
+         * @param delayMillis
+         */
+        void setMinDelay( final String host, final long delayMillis ) {
+            HostState state = getHostState( host );
+            synchronized( state ) {
+                state.minDelayNanos = Math.max( minDelayNanos, TimeUnit.MILLISECONDS.toNanos( delayMillis ) );
+            }
+        }
+
+        /**
+         * Give back a slot obtained from {@link #tryAcquire}.
+         * @param host
+         */
+        void release( final String host ) {
+            HostState state = getHostState( host );
+            synchronized( state ) {
+                state.active--;
+            }
+        }
+    }
+
+    /**
+     * Remove the next link from the queue whose host is ready to accept
+     * another check. Retries that have fallen due are moved onto the
+     * queue first. Links whose host is busy (or was hit too recently)
+     * go to the back of the queue. If every link we looked at was refused,
+     * or the queue is empty but links are still unresolved (being checked
+     * or waiting to be retried), wait until there may be something to do.
+     * @return The link, for which a host slot is now held (give it back
+     * with {@link #finishLink}); <tt>null</tt> if every link has been
+     * resolved or we've been told to stop.
+     */
+    private String takeLink() {
+        final int MAX_DEFERRALS = 16;
+        final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos( 10 );
+        int deferrals = 0;
+        long shortestWait = Long.MAX_VALUE;
+        while( true ) {
+            DelayedLink dueLink;
+            while( ( dueLink = retryQueue.poll() ) != null ) {
+                linksToTest.add( dueLink.getLink() );
+            }
+            if( stopping || Thread.currentThread().isInterrupted() || completion.isDone() ) return null;
+            final String link = linksToTest.poll();
+            if( link == null ) {
+                final DelayedLink nextRetry = retryQueue.peek();
+                long wait = IDLE_WAIT_NANOS;
+                if( nextRetry != null ) wait = Math.min( wait, nextRetry.getDelay( TimeUnit.NANOSECONDS ) );
+                LockSupport.parkNanos( Math.max( wait, 1 ) );
+                continue;
+            }
+            final long wait = hostScheduler.tryAcquire( getHost( link ) );
+            if( wait == 0 ) {
+                linksInProgress.add( link );
+                metrics.linksInFlight.increment();
+                return link;
+            }
+            linksToTest.add( link );
+            shortestWait = Math.min( shortestWait, wait );
+            if( ++deferrals >= MAX_DEFERRALS ) {
+                LockSupport.parkNanos( shortestWait );
+                deferrals = 0;
+                shortestWait = Long.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Give back the host slot held for a link obtained from {@link #takeLink}
+     * once its check (and any scheduling of a retry) is done.
+     * @param link
+     */
+    private void finishLink( final String link ) {
+        hostScheduler.release( getHost( link ) );
+        linksInProgress.remove( link );
+        metrics.linksInFlight.decrement();
+    }
+
+    /**
+     * Read the host's robots.txt (once a run) and, if it gives a
+     * Crawl-delay, have the host scheduler keep checks against the host at
+     * least that far apart. Done before a link to the host is queued, so
+     * that the first checks against it wait their turn too.
+     * @param link
+     * @throws InterruptedException
+     */
+    private void applyCrawlDelay( final String link ) throws InterruptedException {
+        final URI uri;
+        try {
+            uri = new URI( link );
+        } catch( URISyntaxException e ) {
+            return; // reported when the link is checked
+        }
+        final int crawlDelay = this.robots.getRules( uri ).getCrawlDelay();
+        if( crawlDelay > 0 ) {
+            this.hostScheduler.setMinDelay( getHost( link ), crawlDelay * 1000L );
+        }
+    }
+
+    /**
+     * Get the host portion of the link (the key used for per-host scheduling).
+     * @param link
+     * @return The host, or an empty string if the link doesn't have one.
+     */
+    private static String getHost( final String link ) {
+        try {
+            final String host = new URI( link ).getHost();
+            return host == null ? "" : host;
+        } catch( Exception e ) {
+            return "";
+        }
+    }
+
+    /**
+     * Test the connectivity of a single link. If it fails, and the kind
+     * of failure is worth retrying (and TRY_AGAIN is set), the link is put
+     * on the retry queue to be tried again after a backoff delay;
+     * otherwise, the link is added to the bad link queue.
+     * @param linkToTest
+     * @throws java.io.UnsupportedEncodingException if the link can't be decoded for the report.
+     */
+    private void testLink( final String linkToTest ) throws java.io.UnsupportedEncodingException {
+        boolean resolved = true;
+        String outcome = "ok";
+        Exception error = null;
+        int status = 0;
+        final long startTime = System.nanoTime();
+        try {
+            // Test the connectivity to the link. If it
+            // fails, add link to bad link queue.
+            final URI uri = new URI(linkToTest);
+            if( this.respectRobots && !this.robots.mayCheck( uri ) ) {
+                outcome = "disallowed";
+                this.linksDisallowed.incrementAndGet();
+                return;
+            }
+            final int attempt = getLinkInfo( linkToTest ).attempts.incrementAndGet();
+            if( attempt == 1 ) {
+                incrementLinksTested();
+                this.metrics.linksChecked.increment();
+            }
+            final ProbeResult result = checkLink(uri);
+            status = result.getStatus();
+            if (!result.isValid()) {
+                final FailureClass failure = result.getFailure();
+                if (TRY_AGAIN && !result.isRemembered() && attempt <= failure.getMaxRetries()) {
+                    resolved = false;
+                    retryQueue.add(new DelayedLink(linkToTest, failure.getRetryDelay(attempt)));
+                    retries.incrementAndGet();
+                    this.metrics.retries.increment();
+                } else {
+                    if( !result.isRemembered() ) rememberFailure( uri, result );
+                    throw new BadLinkException(linkToTest + " (" + result + ")");
+                }
+            }
+        } catch (BadLinkException e) {
+            outcome = "bad";
+            error = e;
+        } catch (Exception e) {
+            outcome = "bad";
+            error = e;
+        } finally {
+            if( resolved ) {
+                // Past the deadline, the link may already have been reported as timed out.
+                synchronized( this.resolutionLock ) {
+                    resolved = getLinkInfo( linkToTest ).resolved.compareAndSet( false, true );
+                    if( resolved && error != null ) {
+                        addBadLink(linkToTest);
+                        System.err.println(error.toString());
+                    }
+                }
+            }
+            if( resolved ) {
+                writeResult( linkToTest, outcome, status, System.nanoTime() - startTime );
+                if( this.progress != null ) this.progress.linkResolved();
+                completion.arrive();
+            }
+        }
+    }
+
+    /**
+     * Stream a record of a resolved link to the results file, if there is one.
+     * @param link The (canonical) link.
+     * @param outcome "ok", "bad", "disallowed" or "timed out".
+     * @param status HTTP status of the last attempt (0 if none).
+     * @param nanos How long the last attempt took (negative if unknown).
+     */
+    private void writeResult( final String link, final String outcome, final int status, final long nanos ) {
+        if( this.resultWriter == null ) return;
+        final LinkInfo info = getLinkInfo( link );
+        this.resultWriter.write( link, outcome,
+                status > 0 ? Integer.valueOf( status ) : null,
+                nanos >= 0 ? Double.valueOf( Math.round( nanos / 100000.0D ) / 10.0D ) : null,
+                Integer.valueOf( info.attempts.get() ),
+                info.sourcePage );
+    }
+
+    /**
+     * Kinds of link check failure, each with its own retry policy: how
+     * many times to retry and the base delay for the exponential backoff
+     * between attempts.
+     */
+    enum FailureClass {
+        DNS( 1, 10000 ),         // host name didn't resolve; rarely transient
+        CONNECT( 2, 2000 ),      // connection refused or reset
+        TIMEOUT( 2, 2000 ),      // connect or read timed out
+        THROTTLED( 3, 5000 ),    // 429 Too Many Requests
+        SERVER_ERROR( 2, 2000 ), // 5xx
+        CLIENT_ERROR( 0, 0 ),    // other 4xx; retrying won't help
+        OTHER( 1, 2000 );
+
+        private final int maxRetries;
+        private final long baseDelay; // in milliseconds
+
+        FailureClass( final int maxRetries, final long baseDelay ) {
+            this.maxRetries = maxRetries;
+            this.baseDelay = baseDelay;
+        }
+
+        int getMaxRetries() { return this.maxRetries; }
+
+        /**
+         * @param attempt Number of the attempt that just failed (1 for the first).
+         * @return Delay before the next attempt, in milliseconds: the base
+         * delay doubled for each earlier retry, capped at MAX_RETRY_DELAY,
+         * with the upper half of it randomized so that retries of links
+         * that failed together don't all come due together.
+         */
+        long getRetryDelay( final int attempt ) {
+            final long delay = Math.min( this.baseDelay << Math.min( attempt - 1, 20 ), MAX_RETRY_DELAY );
+            return delay / 2 + ThreadLocalRandom.current().nextLong( delay / 2 + 1 );
+        }
+
+        /**
+         * @param status HTTP response status code of a failed probe.
+         * @return The kind of failure.
+         */
+        static FailureClass fromStatus( final int status ) {
+            if( status == 429 ) return THROTTLED;
+            if( status >= 500 ) return SERVER_ERROR;
+            if( status >= 400 ) return CLIENT_ERROR;
+            return OTHER;
+        }
+
+        /**
+         * @param e Exception thrown by a failed probe.
+         * @return The kind of failure.
+         */
+        static FailureClass fromException( final Exception e ) {
+            for( Throwable t = e; t != null; t = t.getCause() ) {
+                if( t instanceof UnknownHostException || t instanceof UnresolvedAddressException ) return DNS;
+            }
+            if( e instanceof SocketTimeoutException || e instanceof HttpTimeoutException ) return TIMEOUT;
+            if( e instanceof ConnectException || e instanceof SocketException ) return CONNECT;
+            return OTHER;
+        }
+    }
+
+    /**
+     * A link waiting on the retry queue until its backoff delay has passed.
+     */
+    static final class DelayedLink implements Delayed {
+        private final String link;
+        private final long due; // System.nanoTime() at which the link may be retried
+
+        DelayedLink( final String link, final long delayMillis ) {
+            this.link = link;
+            this.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( delayMillis );
+        }
+
+        String getLink() { return this.link; }
+
+        @Override
+        public long getDelay( final TimeUnit unit ) {
+            return unit.convert( this.due - System.nanoTime(), TimeUnit.NANOSECONDS );
+        }
+
+        @Override
+        public int compareTo( final Delayed other ) {
+            final long diff = getDelay( TimeUnit.NANOSECONDS ) - other.getDelay( TimeUnit.NANOSECONDS );
+            return diff < 0 ? -1 : ( diff > 0 ? 1 : 0 );
+        }
+    }
+
+    /**
+     * Report a bad link once for every place it occurs on the page.
+     * @param link
+     * @throws java.io.UnsupportedEncodingException
+     */
+    private void addBadLink( final String link ) throws java.io.UnsupportedEncodingException {
+        this.metrics.badLinks.increment();
+        final String decodedLink = URLDecoder.decode(link, DEFAULT_ENCODING);
+        for( int i = getLinkInfo( link ).occurrences.get(); i > 0; --i ) {
+            badLinks.add(decodedLink);
+        }
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task.
+     * Virtual threads arrived in Java 21, so they are looked up reflectively;
+     * on older runtimes an unbounded cached pool of platform threads is used
+     * instead (concurrency is still bounded by the dispatcher's permits).
+     * @return ExecutorService running one thread per task.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+        } catch( Exception e ) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Check to see if we can connect to the link. A link that checked out
+     * okay (or failed) recently enough is taken from the link status cache
+     * (if there is one) without being probed again; one that checked out
+     * okay longer ago is probed with a conditional request.
      * @param uri: The link we are going to check.
-     * @return <tt>true</tt> if link is okay; otherwise <tt>false</tt>.
+     * @return The outcome of the check.
      */
-    private static boolean checkLink( final URI uri ) {
+    private ProbeResult checkLink( final URI uri ) {
         if( uri == null ) throw new IllegalArgumentException( "uri is null" );
-        boolean valid = false;
+        final LinkStatusCache cache = this.linkStatusCache;
+        LinkStatusCache.Entry cached = cache == null ? null : cache.get( uri.toString() );
+        if( cached != null && cache.isFresh( cached ) ) {
+            this.cacheHits.incrementAndGet();
+            if( cached.getFailure() != null ) return ProbeResult.remembered( cached );
+            return new ProbeResult( true, cached.getStatus(), cached.getETag(), cached.getLastModified(), null );
+        }
+        if( cached != null && cached.getFailure() != null ) cached = null; // nothing to revalidate
+        final ProbeResult result = probeLink( uri, cached );
+        if( cache != null && result.isValid() && result.getStatus() > 0 ) {
+            if( result.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null ) {
+                cache.put( new LinkStatusCache.Entry( cached.getURL(), cached.getStatus(), System.currentTimeMillis(),
+                        result.getETag() != null ? result.getETag() : cached.getETag(),
+                        result.getLastModified() != null ? result.getLastModified() : cached.getLastModified() ) );
+            }
+            else {
+                cache.put( new LinkStatusCache.Entry( uri.toString(), result.getStatus(), System.currentTimeMillis(),
+                        result.getETag(), result.getLastModified() ) );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remember that a link failed its check (after any retries), so that
+     * it isn't probed again until the link status cache's failure TTL
+     * has passed.
+     * @param uri The link that failed.
+     * @param result The outcome of its last probe.
+     */
+    private void rememberFailure( final URI uri, final ProbeResult result ) {
+        final LinkStatusCache cache = this.linkStatusCache;
+        if( cache == null ) return;
+        cache.put( new LinkStatusCache.Entry( uri.toString(), result.getStatus(), System.currentTimeMillis(),
+                null, null, result.getFailure().name() ) );
+    }
+
+    /**
+     * Probe the link over the network.
+     * @param uri: The link we are going to check.
+     * @param cached: An expired cache entry for the link, whose validators
+     * (if any) are sent so that the server can answer "not modified"; may be <tt>null</tt>.
+     * @return The outcome of the probe.
+     */
+    private ProbeResult probeLink( final URI uri, final LinkStatusCache.Entry cached ) {
+        ProbeResult result = ProbeResult.failed( FailureClass.OTHER );
+        final long startTime = System.nanoTime();
         try {
-            URL url = uri.toURL();
-            if( TRACING_URLS) System.out.println( Thread.currentThread().getName() + " Checking: " + url.toString() );
-            InputStream is = url.openStream();
-            if( is != null ) {
-                valid = true;
-                is.close();
+            if( TRACING_URLS) System.out.println( Thread.currentThread().getName() + " Checking: " + uri.toString() );
+            final String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase();
+            if( scheme.equals( "http" ) || scheme.equals( "https" ) ) {
+                if( HEAD_PROBE.equals( this.probe ) ) {
+                    result = probeHttpLink( uri, cached );
+                }
+                else {
+                    result = sendProbe( newProbeRequest( uri, cached ).GET().build() );
+                }
+            }
+            else {
+                URLConnection connection = openConnection( uri.toURL() );
+                InputStream is = connection.getInputStream();
+                if( is != null ) {
+                    result = ProbeResult.VALID;
+                    is.close();
+                }
             }
         }
         catch( Exception e ) {
+            result = ProbeResult.failed( FailureClass.fromException( e ) );
             if( uri.toString().indexOf( "finance.yahoo.com" ) != -1 ) e.printStackTrace();
         }
         finally {
-            return valid;
+            recordLatency( uri.getHost() == null ? "" : uri.getHost(), System.nanoTime() - startTime );
+            return result;
+        }
+    }
+
+    /**
+     * Open a connection to a (non-HTTP) link with our connect and read timeouts.
+     * @param url
+     * @return Unconnected connection to the link.
+     * @throws Exception
+     */
+    private URLConnection openConnection( final URL url ) throws Exception {
+        final URLConnection connection = url.openConnection();
+        connection.setConnectTimeout( this.connectTimeout );
+        connection.setReadTimeout( this.readTimeout );
+        return connection;
+    }
+
+    /**
+     * Create the HTTP client through which all HTTP links are probed. The
+     * client keeps a pool of connections alive between requests (so links
+     * to the same host don't each pay for a TCP and TLS handshake) and
+     * uses HTTP/2, multiplexing requests over one connection, wherever the
+     * server supports it. The pool's settings are JVM-wide and are read
+     * once, when the JDK's HTTP client classes are loaded, so they can only
+     * be given on the command line (see {@link #configure}).
+     * @return The client.
+     */
+    private HttpClient newHttpClient() {
+        return HttpClient.newBuilder()
+                .version( HttpClient.Version.HTTP_2 )
+                .followRedirects( HttpClient.Redirect.NORMAL )
+                .connectTimeout( Duration.ofMillis( this.connectTimeout ) )
+                .build();
+    }
+
+    /**
+     * Start building a probe request for the link, with our read timeout
+     * and conditional on the validators remembered for the link, if any.
+     * @param uri The link we are going to check.
+     * @param cached Cache entry for the link; may be <tt>null</tt>.
+     * @return The request builder.
+     */
+    private HttpRequest.Builder newProbeRequest( final URI uri, final LinkStatusCache.Entry cached ) {
+        final HttpRequest.Builder request = HttpRequest.newBuilder( uri )
+                .timeout( Duration.ofMillis( this.readTimeout ) );
+        if( cached != null ) {
+            if( cached.getETag() != null ) {
+                request.header( "If-None-Match", cached.getETag() );
+            }
+            if( cached.getLastModified() != null ) {
+                request.header( "If-Modified-Since", cached.getLastModified() );
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Send a probe request and collect the response status and validators.
+     * An HTTP/1.1 connection only goes back to the pool once its response
+     * body has been read to the end, so a short body (none for HEAD, a
+     * byte for a ranged GET, or an error page) is read and thrown away. A
+     * body longer than MAX_PROBE_DRAIN bytes (a server that ignored the
+     * Range header) is abandoned instead, and its connection with it.
+     * @param request
+     * @return The outcome of the probe.
+     * @throws Exception
+     */
+    private ProbeResult sendProbe( final HttpRequest request ) throws Exception {
+        final int MAX_PROBE_DRAIN = 8192;
+        final HttpResponse<InputStream> response = this.httpClient.send( request, HttpResponse.BodyHandlers.ofInputStream() );
+        final InputStream body = response.body();
+        try {
+            final byte[] buf = new byte[1024];
+            int drained = 0;
+            int n;
+            while( drained <= MAX_PROBE_DRAIN && ( n = body.read( buf ) ) != -1 ) {
+                drained += n;
+            }
+        } catch( IOException e ) {
+            // the status is all we wanted
+        } finally {
+            body.close();
+        }
+        return ProbeResult.from( response );
+    }
+
+    /**
+     * Probe an HTTP link without downloading its body. A HEAD request is
+     * tried first; if the server says it doesn't support HEAD (405 Method
+     * Not Allowed or 501 Not Implemented), a GET for just the first byte
+     * is tried instead. Any other answer to the HEAD, a 404 included,
+     * stands.
+     * @param uri The link we are going to check.
+     * @param cached Expired cache entry for the link; may be <tt>null</tt>.
+     * @return The outcome of the probe.
+     * @throws Exception
+     */
+    private ProbeResult probeHttpLink( final URI uri, final LinkStatusCache.Entry cached ) throws Exception {
+        final ProbeResult headResult = sendProbe( newProbeRequest( uri, cached )
+                .method( "HEAD", HttpRequest.BodyPublishers.noBody() ).build() );
+        if( headResult.getStatus() != HttpURLConnection.HTTP_BAD_METHOD
+                && headResult.getStatus() != HttpURLConnection.HTTP_NOT_IMPLEMENTED ) {
+            return headResult;
+        }
+        return sendProbe( newProbeRequest( uri, cached ).header( "Range", "bytes=0-0" ).GET().build() );
+    }
+
+    /**
+     * @param status HTTP response status code.
+     * @return <tt>true</tt> if the status shows the link is okay (2xx or 3xx).
+     */
+    private static boolean isValidStatus( final int status ) {
+        return status >= 200 && status < 400;
+    }
+
+    /**
+     * The outcome of probing a link: whether it is okay, what kind of
+     * failure it was if not and, for HTTP links, the response status and
+     * cache validators.
+     */
+    static final class ProbeResult {
+        static final ProbeResult VALID = new ProbeResult( true, 0, null, null, null );
+
+        private final boolean valid;
+        private final int status;
+        private final String etag;
+        private final String lastModified;
+        private final FailureClass failure;
+        private final boolean remembered;
+
+        ProbeResult( final boolean valid, final int status, final String etag, final String lastModified,
+                final FailureClass failure ) {
+            this( valid, status, etag, lastModified, failure, false );
+        }
+
+        private ProbeResult( final boolean valid, final int status, final String etag, final String lastModified,
+                final FailureClass failure, final boolean remembered ) {
+            this.valid = valid;
+            this.status = status;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.failure = failure;
+            this.remembered = remembered;
+        }
+
+        static ProbeResult failed( final FailureClass failure ) {
+            return new ProbeResult( false, 0, null, null, failure );
+        }
+
+        /**
+         * @param cached A fresh cache entry for a link that failed its check.
+         * @return The failure, marked as remembered so that it isn't retried.
+         */
+        static ProbeResult remembered( final LinkStatusCache.Entry cached ) {
+            FailureClass failure;
+            try {
+                failure = FailureClass.valueOf( cached.getFailure() );
+            } catch( IllegalArgumentException e ) {
+                failure = FailureClass.OTHER;
+            }
+            return new ProbeResult( false, cached.getStatus(), null, null, failure, true );
+        }
+
+        /**
+         * Collect the response status and validators.
+         * @param response
+         * @return The outcome of the probe.
+         */
+        static ProbeResult from( final HttpResponse<?> response ) {
+            final int status = response.statusCode();
+            final boolean valid = isValidStatus( status );
+            return new ProbeResult( valid, status,
+                    response.headers().firstValue( "ETag" ).orElse( null ),
+                    response.headers().firstValue( "Last-Modified" ).orElse( null ),
+                    valid ? null : FailureClass.fromStatus( status ) );
+        }
+
+        boolean isValid() { return this.valid; }
+        int getStatus() { return this.status; }
+        String getETag() { return this.etag; }
+        String getLastModified() { return this.lastModified; }
+        FailureClass getFailure() { return this.failure; }
+        boolean isRemembered() { return this.remembered; }
+
+        @Override
+        public String toString() {
+            if( this.valid ) return "okay";
+            return this.status > 0 ? this.failure + " " + this.status : String.valueOf( this.failure );
         }
     }
 
@@ -366,27 +2298,67 @@ public final class LinkCheckerMT {
      * @param document The document.
      * @param tag The tag   
      * @param attributeName The attribute where the link text should be found
-     * @param linksToTest Queue of links to be tested
+     * @param resolve Whether to resolve relative links against the document's base URI
+     * @param pageLinks If not <tt>null</tt>, receives every link found (canonical form)
      * @throws Exception 
      */
-    private static void extractLinksFromTags(final Document document, final String tag,
-            final String attributeName, ConcurrentLinkedQueue<String> linksToTest) throws Exception {
+    private void extractLinksFromTags(final Document document, final String tag,
+            final String attributeName, final boolean resolve, final List<String> pageLinks) throws Exception {
         Elements elements = document.getElementsByTag(tag);
         for (Element element : elements) {
             Attributes attributes = element.attributes();
             for (Attribute attribute : attributes) {
                 String key = attribute.getKey();
                 if (key.toLowerCase().equals(attributeName)) {
-                    String value = attribute.getValue().toLowerCase();
-                    if (value.trim().length() > 0 && value.startsWith("http")) {
-                        linksToTest.add(stripQueryString(value));
-                    }
+                    acceptLink(resolve ? element.absUrl(key) : attribute.getValue(), pageLinks);
                     break; // we found the attribute we're looking for
                 }
             }
         }
     }
 
+    /**
+     * Queue the link found in a tag if it is an HTTP link.
+     * @param value The attribute value holding the link.
+     * @param pageLinks If not <tt>null</tt>, receives the link (canonical form)
+     * @throws Exception
+     */
+    private void acceptLink(final String value, final List<String> pageLinks) throws Exception {
+        String link = encodeLink(value.trim()).toLowerCase();
+        if (link.trim().length() > 0 && link.startsWith("http")) {
+            link = enqueueLink(stripQueryString(link));
+            if (pageLinks != null) pageLinks.add(link);
+        }
+    }
+
+    /**
+     * Percent-encode (as UTF-8) the characters that may not appear as they
+     * are in a URI, such as spaces and non-ASCII characters, so that both
+     * extractors give the same link for the same attribute value and the
+     * link is requested as the page meant it. Existing escapes are kept.
+     * @param link
+     * @return The link with only legal characters.
+     */
+    static String encodeLink(final String link) {
+        StringBuilder buf = null;
+        for (int i = 0, n = link.length(); i < n; ) {
+            final int ch = link.codePointAt(i);
+            final int next = i + Character.charCount(ch);
+            if (ch > 0x20 && ch < 0x7f && "\"<>\\^`{|}".indexOf(ch) == -1) {
+                if (buf != null) buf.append((char) ch);
+            }
+            else {
+                if (buf == null) buf = new StringBuilder(link.length() + 16).append(link, 0, i);
+                for (byte b : link.substring(i, next).getBytes(StandardCharsets.UTF_8)) {
+                    buf.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xf, 16)))
+                            .append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+                }
+            }
+            i = next;
+        }
+        return buf == null ? link : buf.toString();
+    }
+
     /**
      * Encode the query portion of the link if it exists.
      * @param link
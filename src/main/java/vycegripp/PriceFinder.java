@@ -11,32 +11,36 @@
 package vycegripp;
 
 import java.math.BigDecimal;
-import java.io.InputStream;
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Properties;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
-import java.util.regex.MatchResult;
 import java.util.regex.PatternSyntaxException;
 import java.net.URI;
-import java.net.URL;
-import java.net.URLConnection;
-import java.net.ConnectException;
+import vycegripp.utilities.PageCache;
+import vycegripp.utilities.PageFetcher;
+import vycegripp.utilities.PageReader;
 
 /**
  * <p>
  * This is a small application to access a particular textbook web site
  * and programmatically retrieve the pricing information about a particular
  * book as specified by the ISBN property specified in the properties
- * file given as a command-line argument.
+ * file given as a command-line argument. The patterns the page is searched
+ * with may be replaced in the same file (see <tt>PatternRegistry</tt>).
+ * If the file names a saved page with the CHECK_PAGE property, that page
+ * is searched instead, both in one scan and pattern by pattern, to check
+ * that the two find the same data (say, after the patterns are changed).
  * </p>
  * 
  * @since 1.7
@@ -49,6 +53,7 @@ public final class PriceFinder {
     private static final boolean DEBUGGING = false;
     private static final boolean PRINT_PAGE = false; // DEBUGGING needs to be set to true.
     private static final String NOT_AVAILABLE = "not available";
+    private static final long PAGE_CACHE_MEMORY = 16L * 1024L * 1024L;
     private static HashSet<String> bookTypesToDisregard = null;
     
     static {
@@ -57,6 +62,27 @@ public final class PriceFinder {
         bookTypesToDisregard.add( "eBook" );
     }
     
+    // What each category of data looks like on the page (unless the
+    // properties file says otherwise). Group 1 of each pattern captures
+    // the data itself.
+    private static final EnumMap<Category,String> PATTERNS = new EnumMap<Category,String>( Category.class );
+    
+    static {
+        PATTERNS.put( Category.SELLER, "\\<span\\s+itemprop\\=\\\"seller\\\"\\s+style\\=\\\"font\\-weight\\:bold\\\"\\>([\\s\\S]+?)\\</span\\>" );
+        PATTERNS.put( Category.CONDITION, "\\<b\\s+itemprop\\=\\\"itemCondition\\\"\\>([\\w ]+?)</b\\>" );
+        PATTERNS.put( Category.USED_CONDITION, "\\<span\\s+style\\=\\\"font\\-size:10px;\\\"\\s+itemprop\\=\\\"UsedCondition\\\"\\>([\\s\\S]+?)\\</span\\>" );
+        PATTERNS.put( Category.PRICE, "\\<span\\s+itemprop\\=\\\"price\\\"\\>([\\d\\.\\,]+?)\\</span\\>" );
+        PATTERNS.put( Category.CURRENCY, "\\<meta\\s+itemprop\\=\\\"priceCurrency\\\"\\s+content\\=\\\"(\\w+)\\\" />" );
+        PATTERNS.put( Category.SHIPPING_COST, "\\<td\\s+style\\=\\\"text\\-align:center;\\\"\\>\\+\\$([\\d\\.\\,]+?)\\</td\\>" );
+        PATTERNS.put( Category.TITLE, "\\<span\\s+itemprop\\=\\\"name\\\"\\>([\\s\\S]+?)\\</span\\>" );
+        PATTERNS.put( Category.EDITION, "\\<span\\s+itemprop\\=\\\"bookEdition\\\"\\>([\\s\\S]+?)\\</span\\>" );
+        PATTERNS.put( Category.LIST_PRICE, "List Price:\\s+([\\s\\S]+?)\\<br\\>" );
+    }
+    
+    // The patterns, compiled once, both one by one and all in one so that
+    // the page is scanned only once.
+    private static final PatternRegistry REGISTRY = new PatternRegistry( PATTERNS );
+    
     //static final String BOOK_SITE = "file:///C:/Users/SCOFIELD/Documents/Stash/Sandbox/JavaEx/NetBeansProjects/PriceFinder/saveontextbooks";
     /**
      * 
@@ -68,7 +94,19 @@ public final class PriceFinder {
                 throw new IllegalArgumentException( "Missing properties file path from command line." );
             }
             
-            final String ISBN = getProperties( args[0] ).getProperty( "ISBN" );
+            final Properties props = getProperties( args[0] );
+            // Site layout changes can be met with new patterns, without a rebuild.
+            REGISTRY.load( props );
+            final String checkPage = props.getProperty( "CHECK_PAGE" );
+            if( checkPage != null && checkPage.trim().length() > 0 ) {
+                System.exit( checkExtractor( new File( checkPage.trim() ).toURI() ) ? 0 : 1 );
+            }
+            final String ISBN = props.getProperty( "ISBN" );
+            final String pageCache = props.getProperty( "PAGE_CACHE" );
+            if( pageCache != null && pageCache.trim().length() > 0 ) {
+                // Keep the pages read so that an unchanged page isn't downloaded again next time.
+                PageReader.setCache( new PageCache( new File( pageCache.trim() ), PAGE_CACHE_MEMORY ) );
+            }
 
             PriceData prices = getPrices(ISBN, BOOK_SITE);
 
@@ -223,11 +261,15 @@ public final class PriceFinder {
     private static PriceData getPrices(final String isbn, final String bookSite ) throws Exception {
         URI uri = new URI( bookSite + "/isbn/" + isbn );
         CharSequence page = readPage( uri );
+        long startTime = System.currentTimeMillis();
+        List<Match> matches = getMatches( page );
+        long endTime = System.currentTimeMillis();
+        System.out.println( ( endTime - startTime ) + " millisecs to elicit data from page." );
         PriceData priceData = new PriceData();
-        String title = getTitleFromPage( page );
-        String edition = getEditionFromPage( page );
-        String listPrice = getListPriceFromPage( page );
-        List<Price> prices = getPricesFromPage( page );
+        String title = getTitleFromPage( matches );
+        String edition = getEditionFromPage( matches );
+        String listPrice = getListPriceFromPage( matches );
+        List<Price> prices = getPricesFromPage( matches );
         priceData.setURI( uri );
         priceData.setTitle( title );
         priceData.setEdition( edition );
@@ -236,94 +278,65 @@ public final class PriceFinder {
         return priceData;
     }
     
-    private static String getTitleFromPage(CharSequence page) throws Exception {
-        List<Match> titles = getTitles(page);
-        if (titles != null) {
-            if (titles.size() > 1) {
-                System.err.println("Warning: more than one title found.");
-            }
-            else if( titles.size() == 0 ) {
-                System.err.println("Warning: unable to elicit title data.");
-                return NOT_AVAILABLE;
-            }
-            return titles.get(0).getText();
-        } else {
+    private static String getTitleFromPage(List<Match> matches) throws Exception {
+        List<Match> titles = select(matches, Category.TITLE);
+        if (titles.size() > 1) {
+            System.err.println("Warning: more than one title found.");
+        }
+        else if( titles.size() == 0 ) {
+            System.err.println("Warning: unable to elicit title data.");
             return NOT_AVAILABLE;
         }
+        return titles.get(0).getText();
     }
   
-    private static String getEditionFromPage(CharSequence page) throws Exception {
-        List<Match> editions = getEditions(page);
-        if (editions != null) {
-            if (editions.size() > 1) {
-                System.err.println("Warning: more than one edition found.");
-            }
-            else if( editions.size() == 0 ) {
-                System.err.println("Warning: unable to elicit edition data." );
-                return NOT_AVAILABLE;
-            }
-            return editions.get(0).getText();
-        } else {
+    private static String getEditionFromPage(List<Match> matches) throws Exception {
+        List<Match> editions = select(matches, Category.EDITION);
+        if (editions.size() > 1) {
+            System.err.println("Warning: more than one edition found.");
+        }
+        else if( editions.size() == 0 ) {
+            System.err.println("Warning: unable to elicit edition data." );
             return NOT_AVAILABLE;
         }
+        return editions.get(0).getText();
     }
     
-    private static String getListPriceFromPage(CharSequence page) throws Exception {
-        List<Match> prices = getListPrice(page);
-        if (prices != null) {
-            if (prices.size() > 1) {
-                System.err.println("Warning: more than one list price found.");
-            } else if (prices.size() == 0) {
-                System.err.println("Warning: unable to elicit list price data.");
-                return NOT_AVAILABLE;
-            }
-            return format(Double.parseDouble(removeExtraneousPunc(prices.get(0).getText())));
-        } else {
+    private static String getListPriceFromPage(List<Match> matches) throws Exception {
+        List<Match> prices = select(matches, Category.LIST_PRICE);
+        if (prices.size() > 1) {
+            System.err.println("Warning: more than one list price found.");
+        } else if (prices.size() == 0) {
+            System.err.println("Warning: unable to elicit list price data.");
             return NOT_AVAILABLE;
         }
+        return format(Double.parseDouble(removeExtraneousPunc(prices.get(0).getText())));
     }
  
     /**
-     * Get all the pricing information from the page.
-     * @param page
+     * Get all the pricing information from the matches found on the page.
+     * @param matches All the matches, in order of appearance on the page.
      * @return List of <tt>Price</tt> objects sorted in order of appearance on the page.
      * @throws Exception 
      */
-    private static List<Price> getPricesFromPage(CharSequence page) throws Exception {
+    private static List<Price> getPricesFromPage(List<Match> matches) throws Exception {
         long startTime = System.currentTimeMillis();
-        List<Match> sellers = getSellers( page);
-        List<Match> conditions = getConditions( page );
-        List<Match> usedConditions = getUsedConditions( page );
-        List<Match> prices = getPrices( page );
-        List<Match> currencies = getCurrencies( page );
-        List<Match> shippingCosts = getShippingCosts( page );
+        List<Price> bookprices = combine( matches );
         long endTime = System.currentTimeMillis();
-        System.out.println( ( endTime - startTime ) + " millisecs to elicit data from page." );
-        startTime = System.currentTimeMillis();
-        List<Match> all = sellers;
-        all.addAll( conditions );
-        all.addAll( usedConditions );
-        all.addAll( prices );
-        all.addAll( currencies );
-        all.addAll( shippingCosts );
-        List<Price> bookprices = sortAndCombine( all );
-        endTime = System.currentTimeMillis();
-        System.out.println( (endTime - startTime) + " millisecs to combine and sort the data." );
+        System.out.println( (endTime - startTime) + " millisecs to combine the data." );
         return bookprices ;
     }
     
     /**
-     * Sort all the matches by ascending offset and then combine into <tt>Price</tt> objects.
+     * Combine the matches (already in ascending order of offset) into <tt>Price</tt> objects.
+     * Matches of categories that aren't part of a price are skipped.
      * @param matches
      * @return 
      */
-    private static List<Price> sortAndCombine(List<Match> matches) {
+    private static List<Price> combine(List<Match> matches) {
         ArrayList<Price> bookprices = new ArrayList<Price>();
-        Match[] combined = new Match[matches.size()];
-        matches.toArray(combined);
-        Arrays.sort(combined);
         Price price = null;
-        for (Match match : combined) {
+        for (Match match : matches) {
             if( DEBUGGING ) System.out.println(match.toString());
             switch (match.getCategory()) {
                 case SELLER:
@@ -370,142 +383,73 @@ public final class PriceFinder {
         return bookprices;
     }
     
-    private static List<Match> getSellers(CharSequence page) throws Exception {
-        return getMatches(Category.SELLER, page, "\\<span\\s+itemprop\\=\\\"seller\\\"\\s+style\\=\\\"font\\-weight\\:bold\\\"\\>([\\s\\S]+?)\\</span\\>");
-    }
-
-    private static List<Match> getConditions(CharSequence page) throws Exception {
-        return getMatches(Category.CONDITION, page, "\\<b\\s+itemprop\\=\\\"itemCondition\\\"\\>([\\w ]+?)</b\\>");
-    }
-
-    private static List<Match> getUsedConditions(CharSequence page) throws Exception {
-        return getMatches(Category.USED_CONDITION, page, "\\<span\\s+style\\=\\\"font\\-size:10px;\\\"\\s+itemprop\\=\\\"UsedCondition\\\"\\>([\\s\\S]+?)\\</span\\>");
-    }
-
-    private static List<Match> getPrices(CharSequence page) throws Exception {
-        return getMatches(Category.PRICE, page, "\\<span\\s+itemprop\\=\\\"price\\\"\\>([\\d\\.\\,]+?)\\</span\\>");
-    }
-
-    private static List<Match> getCurrencies(CharSequence page) throws Exception {
-        return getMatches(Category.CURRENCY, page, "\\<meta\\s+itemprop\\=\\\"priceCurrency\\\"\\s+content\\=\\\"(\\w+)\\\" />");
-    }
-
-    private static List<Match> getShippingCosts(CharSequence page) throws Exception {
-        return getMatches(Category.SHIPPING_COST, page, "\\<td\\s+style\\=\\\"text\\-align:center;\\\"\\>\\+\\$([\\d\\.\\,]+?)\\</td\\>");
-    }
-    
-    private static List<Match> getTitles(CharSequence page) throws Exception {
-        return getMatches(Category.NOT_APPLICABLE, page, "\\<span\\s+itemprop\\=\\\"name\\\"\\>([\\s\\S]+?)\\</span\\>" );
-    }
-    
-    private static List<Match> getEditions(CharSequence page) throws Exception {
-        return getMatches(Category.NOT_APPLICABLE, page, "\\<span\\s+itemprop\\=\\\"bookEdition\\\"\\>([\\s\\S]+?)\\</span\\>");
-    }
-    
-    private static List<Match> getListPrice(CharSequence page) throws Exception {
-        return getMatches(Category.NOT_APPLICABLE, page, "List Price:\\s+([\\s\\S]+?)\\<br\\>");
+    /**
+     * @param matches
+     * @param category
+     * @return The matches of the given category, in the order found.
+     */
+    private static List<Match> select( final List<Match> matches, final Category category ) {
+        ArrayList<Match> selected = new ArrayList<Match>();
+        for( Match match : matches ) {
+            if( match.getCategory() == category ) selected.add( match );
+        }
+        return selected;
     }
 
     /**
-     * The regular expression engine for this application.
-     * @param category
+     * The regular expression engine for this application: finds every
+     * category of data in one scan of the page.
      * @param page
-     * @param pattern
-     * @return A list of <tt>Match</tt> objects found according to regex pattern.
+     * @return A list of <tt>Match</tt> objects, in ascending order of offset.
      * @throws Exception 
      */
-    private static List<Match> getMatches( final Category category, final CharSequence page, 
-            final String pattern) throws Exception {
-        ArrayList<Match> matches = new ArrayList<Match>();
+    private static List<Match> getMatches( final CharSequence page ) throws Exception {
         try {
-            final Pattern patt = Pattern.compile(pattern);
-            Matcher matcher = patt.matcher(page);
-            MatchResult result = matcher.toMatchResult();
-            int numGroups = result.groupCount();
-            //System.out.format("numGroups=%d%n", numGroups);
-            int count = 0;
-            int start = -1;
-            int end = -1;
-            while (matcher.find()) {
-                ++count;
-                start = matcher.start(1);
-                end = matcher.end(1);
-                String matchedText = page.subSequence(start, end).toString();
-                //System.out.println(matchedText);
-                Match match = new MatchImpl();
-                match.setCategory( category );
-                match.setOffset( start );
-                match.setText( matchedText );
-                //System.out.format( "from %d to %d: %s%n", start, end, matchedText );
-                matches.add( match );
-            }
-            //System.out.println("count=" + count);
-
-        } catch (PatternSyntaxException e) {
-            System.err.println(e.toString());
-            System.err.println("Description=" + e.getDescription());
-            System.err.println("Index=" + e.getIndex());
-            System.err.println("Pattern=" + e.getPattern());
-            System.err.println("Message=" + e.getDescription());
-            throw e;
+            return REGISTRY.getExtractor().getMatches( page );
         } catch (IllegalStateException e) {
             System.err.println(e.toString());
             throw e;
         }
-        return matches;
     }
 
     /**
-     * Read the page from the input stream.
-     * @param is
-     * @return A CharSequence object containing contents read from input stream.
+     * Search a page both in one scan and pattern by pattern, and report
+     * whether the two find the same matches.
+     * @param uri
+     * @return <tt>true</tt> if they do.
      * @throws Exception 
      */
-    private static StringBuilder readPage( URI uri ) throws Exception {
-        InputStream is = openURL( uri );
-        StringBuilder page = new StringBuilder();
-        final int END_OF_FILE = -1;
-        //final int MAX_CHAR_VALUE = 0xff;
-        long startTime = System.currentTimeMillis();
-        int ch;
-        while( ( ch = is.read() ) != END_OF_FILE ) {
-            page.append( (char)ch );
+    private static boolean checkExtractor( URI uri ) throws Exception {
+        CharSequence page = readPage( uri );
+        List<Match> oneScan = getMatches( page );
+        List<Match> oneByOne = REGISTRY.getExtractor().getMatchesOneByOne( page );
+        for( int i = 0, n = Math.max( oneScan.size(), oneByOne.size() ); i < n; ++i ) {
+            Match a = i < oneScan.size() ? oneScan.get( i ) : null;
+            Match b = i < oneByOne.size() ? oneByOne.get( i ) : null;
+            if( a == null || b == null || a.getCategory() != b.getCategory()
+                    || a.getOffset() != b.getOffset() || !a.getText().equals( b.getText() ) ) {
+                System.err.println( "Match " + i + " differs: one scan found " + a + ", pattern by pattern " + b );
+                return false;
+            }
         }
-        long endTime = System.currentTimeMillis();
-        if( DEBUGGING && PRINT_PAGE) System.out.println( page.toString() );
-        System.out.println( ( endTime - startTime ) + " millisecs to read page of " + page.length() + " bytes." ); 
-        is.close();
-        return page;
+        System.out.println( oneScan.size() + " matches, the same in one scan as pattern by pattern." );
+        return true;
     }
-    
+
     /**
-     * Open the input stream and return it.
-     * 
+     * Read the page, decoded with its own charset.
      * @param uri
-     * @return the input stream.
+     * @return A CharSequence object containing contents read from input stream
+     * (for a local page in a single-byte charset, a view of the mapped file).
      * @throws Exception 
      */
-    private static InputStream openURL(final URI uri) throws Exception {
-        final int CONNECTION_TIMEOUT = 180000;
-        long startTime = 0; long endTime = 0;
-        try {
-            if (uri == null) {
-                throw new IllegalArgumentException("uri is null");
-            }
-            final URL url = uri.toURL();
-            startTime = System.currentTimeMillis();
-            final URLConnection connection = url.openConnection();
-            connection.setConnectTimeout(CONNECTION_TIMEOUT);
-            final InputStream is = url.openStream();
-            final int PAGE_SIZE = 4096;
-            final int NUM_PAGES = 20;
-            final BufferedInputStream bis = new BufferedInputStream(is, PAGE_SIZE * NUM_PAGES);
-            return bis;
-        } catch (ConnectException e) {
-            endTime = System.currentTimeMillis();
-            System.err.println( (endTime-startTime) + " millisecs before timeout." );
-            throw e;
-        } 
+    private static CharSequence readPage( URI uri ) throws Exception {
+        PageReader.Content content = PageFetcher.shared().fetch( uri );
+        CharSequence page = content.getChars();
+        if( DEBUGGING && PRINT_PAGE) System.out.println( page.toString() );
+        System.out.format( "%.3f millisecs to read page of %d bytes (first byte after %.3f millisecs).%n",
+                content.getTotalNanos() / 1e6D, content.getBytes().remaining(), content.getFirstByteNanos() / 1e6D );
+        return page;
     }
    
     /**
@@ -557,10 +501,328 @@ enum Category {
     , PRICE
     , CURRENCY
     , SHIPPING_COST
+    , TITLE
+    , EDITION
+    , LIST_PRICE
     , NOT_APPLICABLE
     
 }
 
+/**
+ * Finds the matches of a pattern for each of a number of categories in a
+ * single scan of a page, the same matches that searching the page once
+ * for each pattern would find. The patterns are combined into one
+ * alternation, each alternative a group named after its category, which
+ * finds each place on the page where some pattern matches. The search
+ * goes on from the next character rather than from the end of the match,
+ * so a match of one category may lie inside (or overlap) a match of
+ * another, as with separate searches; and where the alternation reports
+ * one category at a place, the categories after it are tried there too.
+ * Matches of the same category don't overlap. The matches come out in
+ * ascending order of offset. Group 1 of each pattern captures the text of
+ * a match; since the groups are renumbered in the combined pattern,
+ * patterns can't use numbered back references (<tt>PatternRegistry</tt>
+ * rejects them). An extractor is immutable, so safe for use by multiple
+ * threads.
+ */
+final class Extractor {
+    
+    private static final Comparator<Match> BY_OFFSET = new Comparator<Match>() {
+        @Override
+        public int compare( final Match a, final Match b ) {
+            return a.getOffset() < b.getOffset() ? -1 : a.getOffset() > b.getOffset() ? 1 : 0;
+        }
+    };
+    
+    private final Pattern combined;
+    private final Category[] categories;
+    private final Pattern[] patterns;
+    private final int[] textGroups; // in the combined pattern, group 1 of each category's pattern
+    private final String firstChars; // the characters any match must start with; null if not known
+    
+    /**
+     * @param patterns The pattern for each category; each must have at least one group.
+     * @throws PatternSyntaxException if the patterns can't be combined.
+     */
+    Extractor( final Map<Category,Pattern> patterns ) {
+        this.categories = new Category[patterns.size()];
+        this.patterns = new Pattern[patterns.size()];
+        this.textGroups = new int[patterns.size()];
+        StringBuilder alternation = new StringBuilder();
+        StringBuilder firstChars = new StringBuilder();
+        int group = 1;
+        int i = 0;
+        for( Map.Entry<Category,Pattern> entry : patterns.entrySet() ) {
+            final int groupCount = entry.getValue().matcher( "" ).groupCount();
+            if( groupCount < 1 ) {
+                throw new IllegalArgumentException( "Pattern for " + entry.getKey() + " captures nothing: " + entry.getValue() );
+            }
+            if( alternation.length() > 0 ) alternation.append( '|' );
+            alternation.append( "(?<" ).append( groupName( entry.getKey() ) ).append( '>' )
+                    .append( entry.getValue().pattern() ).append( ')' );
+            this.categories[i] = entry.getKey();
+            this.patterns[i] = entry.getValue();
+            this.textGroups[i] = group + 1;
+            group += 1 + groupCount;
+            ++i;
+            final int first = leadingLiteral( entry.getValue().pattern() );
+            if( first == -1 ) firstChars = null;
+            else if( firstChars != null && firstChars.indexOf( String.valueOf( (char) first ) ) == -1 ) firstChars.append( (char) first );
+        }
+        this.combined = Pattern.compile( alternation.toString() );
+        this.firstChars = firstChars == null ? null : firstChars.toString();
+    }
+    
+    /**
+     * @param page
+     * @return The matches of every category, in ascending order of offset.
+     */
+    List<Match> getMatches( final CharSequence page ) {
+        final ArrayList<Match> matches = new ArrayList<Match>();
+        final Matcher matcher = this.combined.matcher( page ).useTransparentBounds( true ).useAnchoringBounds( false );
+        final Matcher[] own = new Matcher[this.categories.length]; // made when first needed
+        final int[] next = new int[this.categories.length]; // where each category's next match may start
+        int at = -1;
+        while( ( at = findFrom( matcher, page, at + 1 ) ) != -1 ) {
+            int i = 0;
+            while( matcher.start( this.textGroups[i] - 1 ) == -1 ) ++i; // which alternative matched
+            // The alternatives before it don't match here; it and those after it may.
+            if( next[i] <= at ) {
+                next[i] = add( matches, i, page, matcher, this.textGroups[i] );
+            }
+            for( int j = i + 1; j < this.categories.length; ++j ) {
+                if( next[j] > at ) continue;
+                if( own[j] == null ) {
+                    own[j] = this.patterns[j].matcher( page ).useTransparentBounds( true ).useAnchoringBounds( false );
+                }
+                own[j].region( at, page.length() );
+                if( own[j].lookingAt() ) next[j] = add( matches, j, page, own[j], 1 );
+            }
+        }
+        // A match that starts inside another may have its text first.
+        for( int k = 1; k < matches.size(); ++k ) {
+            if( matches.get( k ).getOffset() < matches.get( k - 1 ).getOffset() ) {
+                Collections.sort( matches, BY_OFFSET );
+                break;
+            }
+        }
+        return matches;
+    }
+    
+    /**
+     * Find the first place, from the given offset on, where the combined
+     * pattern matches. Where every pattern starts with a literal character,
+     * only the places holding one of those characters are tried, which is
+     * much quicker than trying the whole alternation at every character.
+     * @return The offset of the match (the matcher holds it); -1 if there is none.
+     */
+    private int findFrom( final Matcher matcher, final CharSequence page, final int from ) {
+        final int length = page.length();
+        if( from > length ) return -1;
+        if( this.firstChars == null ) return matcher.find( from ) ? matcher.start() : -1;
+        for( int at = from; at < length; ++at ) {
+            if( this.firstChars.indexOf( page.charAt( at ) ) == -1 ) continue;
+            matcher.region( at, length );
+            if( matcher.lookingAt() ) return at;
+        }
+        return -1;
+    }
+    
+    /**
+     * @param pattern
+     * @return The literal character every match of the pattern starts with
+     * (as the default patterns all do); -1 if it can't be told at a glance.
+     */
+    static int leadingLiteral( final String pattern ) {
+        if( pattern.length() == 0 ) return -1;
+        for( int k = 0, n = pattern.length(); k < n; ++k ) {
+            final char ch = pattern.charAt( k );
+            if( ch == '\\' ) ++k; // an escaped '|' is no alternation
+            else if( ch == '|' ) return -1; // may be one in a group or class; no matter
+        }
+        int literal = pattern.charAt( 0 );
+        int next = 1;
+        if( literal == '\\' ) {
+            if( pattern.length() < 2 || Character.isLetterOrDigit( pattern.charAt( 1 ) ) ) return -1; // \s, \Q, \x41 ...
+            literal = pattern.charAt( 1 );
+            next = 2;
+        } else if( "([{.^$?*+)".indexOf( literal ) != -1 ) {
+            return -1;
+        }
+        if( next < pattern.length() && "?*{".indexOf( pattern.charAt( next ) ) != -1 ) return -1; // may be left out
+        return literal;
+    }
+    
+    /**
+     * The matches each pattern finds in a search of its own, merged in
+     * ascending order of offset: what {@link #getMatches} finds, the slow
+     * way. For checking the extractor against a saved page.
+     * @param page
+     * @return The matches of every category, in ascending order of offset.
+     */
+    List<Match> getMatchesOneByOne( final CharSequence page ) {
+        final ArrayList<Match> matches = new ArrayList<Match>();
+        for( int i = 0; i < this.categories.length; ++i ) {
+            final Matcher matcher = this.patterns[i].matcher( page );
+            while( matcher.find() ) add( matches, i, page, matcher, 1 );
+        }
+        Collections.sort( matches, BY_OFFSET );
+        return matches;
+    }
+    
+    /**
+     * Add the match of a category, unless the group holding its text took no part.
+     * @return Where the category's next match may start.
+     */
+    private int add( final List<Match> matches, final int i, final CharSequence page,
+            final Matcher matcher, final int textGroup ) {
+        final int start = matcher.start( textGroup );
+        if( start != -1 ) {
+            Match match = new MatchImpl();
+            match.setCategory( this.categories[i] );
+            match.setOffset( start );
+            match.setText( page.subSequence( start, matcher.end( textGroup ) ).toString() );
+            matches.add( match );
+        }
+        return matcher.end() == matcher.start() ? matcher.end() + 1 : matcher.end();
+    }
+    
+    // Group names may only have letters and digits.
+    private static String groupName( final Category category ) {
+        return category.name().replace( "_", "" );
+    }
+}
+
+/**
+ * The patterns for each <tt>Category</tt>, compiled once and shared by
+ * every page searched, along with an <tt>Extractor</tt> for all of them.
+ * Patterns may be replaced from properties named "PATTERN_" followed by
+ * the category (for example, PATTERN_SHIPPING_COST), so that a change in
+ * the site's layout needs no rebuild. The registry is safe for use by
+ * multiple threads: the patterns are replaced all at once, and readers
+ * never wait.
+ */
+final class PatternRegistry {
+    
+    static final String PROPERTY_PREFIX = "PATTERN_";
+    
+    // Replaced, never changed, so readers see a consistent set.
+    private static final class Snapshot {
+        final EnumMap<Category,Pattern> patterns;
+        final Extractor extractor;
+        Snapshot( final EnumMap<Category,Pattern> patterns ) {
+            this.patterns = patterns;
+            this.extractor = new Extractor( patterns );
+        }
+    }
+    
+    private volatile Snapshot snapshot;
+    
+    /**
+     * @param patterns The pattern (as a regular expression) for each category.
+     * @throws PatternSyntaxException if a pattern isn't a valid regular expression.
+     */
+    PatternRegistry( final Map<Category,String> patterns ) {
+        EnumMap<Category,Pattern> compiled = new EnumMap<Category,Pattern>( Category.class );
+        for( Map.Entry<Category,String> entry : patterns.entrySet() ) {
+            compiled.put( entry.getKey(), compile( entry.getKey(), entry.getValue() ) );
+        }
+        this.snapshot = new Snapshot( compiled );
+    }
+    
+    /**
+     * @param category
+     * @return The compiled pattern for the category; <tt>null</tt> if there is none.
+     */
+    Pattern get( final Category category ) {
+        return this.snapshot.patterns.get( category );
+    }
+    
+    /**
+     * @return An extractor for all the patterns.
+     */
+    Extractor getExtractor() {
+        return this.snapshot.extractor;
+    }
+    
+    /**
+     * Replace the pattern for one category.
+     * @param category
+     * @param pattern
+     * @throws PatternSyntaxException if the pattern isn't a valid regular
+     * expression, in which case the registry is left unchanged.
+     * @throws IllegalArgumentException if the pattern captures nothing or
+     * has a numbered back reference, in which case too the registry is left unchanged.
+     */
+    synchronized void register( final Category category, final String pattern ) {
+        EnumMap<Category,Pattern> patterns = new EnumMap<Category,Pattern>( this.snapshot.patterns );
+        patterns.put( category, compile( category, pattern ) );
+        this.snapshot = new Snapshot( patterns );
+    }
+    
+    /**
+     * Replace the patterns given in the properties (see above); the others
+     * are kept. Either all the patterns given are replaced or, if any of
+     * them is invalid, none is.
+     * @param props
+     * @return The number of patterns replaced.
+     * @throws PatternSyntaxException if a pattern isn't a valid regular expression.
+     * @throws IllegalArgumentException if a pattern captures nothing or has a
+     * numbered back reference.
+     */
+    synchronized int load( final Properties props ) {
+        EnumMap<Category,Pattern> patterns = new EnumMap<Category,Pattern>( this.snapshot.patterns );
+        int count = 0;
+        for( Category category : Category.values() ) {
+            final String pattern = props.getProperty( PROPERTY_PREFIX + category.name() );
+            if( pattern != null && pattern.trim().length() > 0 ) {
+                patterns.put( category, compile( category, pattern.trim() ) );
+                ++count;
+            }
+        }
+        if( count > 0 ) this.snapshot = new Snapshot( patterns );
+        return count;
+    }
+    
+    private static Pattern compile( final Category category, final String pattern ) {
+        try {
+            final Pattern compiled = Pattern.compile( pattern );
+            if( compiled.matcher( "" ).groupCount() < 1 ) {
+                throw new IllegalArgumentException( "Pattern for " + category + " captures nothing: " + pattern );
+            }
+            if( hasNumberedBackReference( pattern ) ) {
+                // In the Extractor's combined pattern, \1 would be some other category's group.
+                throw new IllegalArgumentException( "Pattern for " + category
+                        + " has a numbered back reference (use a named group and \\k<name>): " + pattern );
+            }
+            return compiled;
+        } catch (PatternSyntaxException e) {
+            System.err.println(e.toString());
+            System.err.println("Category=" + category);
+            System.err.println("Description=" + e.getDescription());
+            System.err.println("Index=" + e.getIndex());
+            System.err.println("Pattern=" + e.getPattern());
+            throw e;
+        }
+    }
+    
+    // Whether the pattern has a "\<digit>" back reference (outside of \Q...\E quoting).
+    static boolean hasNumberedBackReference( final String pattern ) {
+        for( int i = 0, n = pattern.length(); i < n - 1; ++i ) {
+            if( pattern.charAt( i ) != '\\' ) continue;
+            final char next = pattern.charAt( i + 1 );
+            if( next >= '1' && next <= '9' ) return true;
+            if( next == 'Q' ) {
+                final int end = pattern.indexOf( "\\E", i + 2 );
+                if( end == -1 ) return false;
+                i = end;
+            }
+            ++i; // skip the escaped character
+        }
+        return false;
+    }
+}
+
 /**
  * Interface to keep track of matches found by regex searches.
  */
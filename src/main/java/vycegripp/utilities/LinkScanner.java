@@ -0,0 +1,327 @@
+// =============================================================================
+// LinkScanner by Cary Scofield (carys689@gmail.com) is licensed under a
+// Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+// (See http://www.creativecommons.org for details).
+//
+// RECIPIENT ACCEPTS THE GOODS “AS IS,” WITH NO REPRESENTATION OR WARRANTY
+// OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION IMPLIED
+// WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.
+// =============================================================================
+
+package vycegripp.utilities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * This class pulls link attributes (for example, the <tt>href</tt> of
+ * every <tt>A</tt> tag) out of an HTML byte stream as it arrives, without
+ * holding the page in memory or building a DOM. Each attribute value is
+ * handed to a {@link Listener} as soon as its closing quote has been read.
+ * </p>
+ * <p>
+ * The scanner understands just enough HTML to find tags and their
+ * attributes: comments, declarations and the contents of <tt>SCRIPT</tt>
+ * and <tt>STYLE</tt> elements are skipped, and character references in
+ * attribute values are decoded. Markup is scanned byte by byte, so the
+ * page must be in a charset that encodes ASCII as ASCII (as UTF-8 and the
+ * ISO-8859 and Windows charsets do); the bytes of each attribute value are
+ * decoded with the page's charset, set with {@link #setCharset(Charset)}.
+ * </p>
+ */
+public class LinkScanner {
+
+    /**
+     * Receives the attribute values found by the scanner.
+     */
+    public interface Listener {
+        /**
+         * @param tag The tag name, in lower case.
+         * @param value The (decoded) attribute value.
+         */
+        void linkFound(String tag, String value) throws Exception;
+    }
+
+    private static final int END_OF_FILE = -1;
+    private static final int BUFSIZ = 8192;
+
+    // tag name -> name of the attribute holding the link, all in lower case.
+    private final Map<String, String> linkAttributes = new HashMap<String, String>();
+
+    private InputStream is;
+    private final byte[] buf = new byte[BUFSIZ];
+    private int pos = 0;
+    private int limit = 0;
+    private int pushedBack = END_OF_FILE;
+    private Charset charset = StandardCharsets.ISO_8859_1;
+
+    /**
+     * Say what charset the page is in (ISO-8859-1 if not set).
+     *
+     * @param charset
+     * @return This scanner.
+     */
+    public LinkScanner setCharset(Charset charset) {
+        this.charset = charset;
+        return this;
+    }
+
+    /**
+     * Ask for the values of the given attribute of the given tag.
+     *
+     * @param tag
+     * @param attributeName
+     * @return This scanner.
+     */
+    public LinkScanner addLinkAttribute(String tag, String attributeName) {
+        this.linkAttributes.put(tag.toLowerCase(), attributeName.toLowerCase());
+        return this;
+    }
+
+    /**
+     * Scan the stream to its end. The stream is not closed.
+     *
+     * @param is
+     * @param listener
+     * @throws Exception from the stream or the listener.
+     */
+    public void scan(InputStream is, Listener listener) throws Exception {
+        this.is = is;
+        this.pos = 0;
+        this.limit = 0;
+        this.pushedBack = END_OF_FILE;
+        int ch;
+        while ((ch = read()) != END_OF_FILE) {
+            if (ch != '<') {
+                continue;
+            }
+            ch = read();
+            if (ch == '!') {
+                skipDeclaration();
+            } else if (isNameChar(ch)) {
+                String tag = readName(ch).toLowerCase();
+                String attributeName = this.linkAttributes.get(tag);
+                readAttributes(tag, attributeName, listener);
+                if (tag.equals("script") || tag.equals("style")) {
+                    skipToEndTag(tag);
+                }
+            } else {
+                unread(ch); // end tag or stray '<': nothing to do
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        if (this.pushedBack != END_OF_FILE) {
+            int ch = this.pushedBack;
+            this.pushedBack = END_OF_FILE;
+            return ch;
+        }
+        if (this.pos == this.limit) {
+            this.limit = this.is.read(this.buf, 0, BUFSIZ);
+            this.pos = 0;
+            if (this.limit <= 0) {
+                this.limit = 0;
+                return END_OF_FILE;
+            }
+        }
+        return this.buf[this.pos++] & 0xff;
+    }
+
+    private void unread(int ch) {
+        this.pushedBack = ch;
+    }
+
+    private static boolean isNameChar(int ch) {
+        return Character.isLetterOrDigit(ch) || ch == '-' || ch == '_' || ch == ':';
+    }
+
+    private static boolean isSpace(int ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r' || ch == '\f';
+    }
+
+    private String readName(int ch) throws IOException {
+        StringBuilder name = new StringBuilder();
+        while (ch != END_OF_FILE && isNameChar(ch)) {
+            name.append((char) ch);
+            ch = read();
+        }
+        unread(ch);
+        return name.toString();
+    }
+
+    private int skipSpace() throws IOException {
+        int ch;
+        while ((ch = read()) != END_OF_FILE && isSpace(ch)) {
+            // skip
+        }
+        return ch;
+    }
+
+    /**
+     * Read the attributes of a start tag, up to and including the closing '>'.
+     */
+    private void readAttributes(String tag, String attributeName, Listener listener) throws Exception {
+        while (true) {
+            int ch = skipSpace();
+            if (ch == END_OF_FILE || ch == '>') {
+                return;
+            }
+            if (ch == '/' || ch == '=' || ch == '"' || ch == '\'') {
+                continue;
+            }
+            StringBuilder name = new StringBuilder();
+            while (ch != END_OF_FILE && !isSpace(ch) && ch != '=' && ch != '>' && ch != '/') {
+                name.append((char) ch);
+                ch = read();
+            }
+            if (isSpace(ch)) {
+                ch = skipSpace();
+            }
+            if (ch != '=') {
+                unread(ch); // attribute without a value
+                continue;
+            }
+            String value = readValue();
+            if (attributeName != null && attributeName.equalsIgnoreCase(name.toString())) {
+                listener.linkFound(tag, decodeReferences(decodeBytes(value)));
+            }
+        }
+    }
+
+    private String readValue() throws IOException {
+        int ch = skipSpace();
+        StringBuilder value = new StringBuilder();
+        if (ch == '"' || ch == '\'') {
+            int quote = ch;
+            while ((ch = read()) != END_OF_FILE && ch != quote) {
+                value.append((char) ch);
+            }
+        } else {
+            while (ch != END_OF_FILE && !isSpace(ch) && ch != '>') {
+                value.append((char) ch);
+                ch = read();
+            }
+            unread(ch);
+        }
+        return value.toString();
+    }
+
+    // The value was read a byte to a char; decode it with the page's charset.
+    private String decodeBytes(String value) {
+        if (this.charset.equals(StandardCharsets.ISO_8859_1)) {
+            return value;
+        }
+        for (int i = 0, n = value.length(); i < n; ++i) {
+            if (value.charAt(i) >= 0x80) {
+                return new String(value.getBytes(StandardCharsets.ISO_8859_1), this.charset);
+            }
+        }
+        return value; // plain ASCII
+    }
+
+    /**
+     * Skip a comment ("&lt;!-- ... --&gt;") or other declaration ("&lt;!DOCTYPE ...&gt;").
+     */
+    private void skipDeclaration() throws IOException {
+        int ch = read();
+        if (ch == '-') {
+            ch = read();
+            if (ch == '-') {
+                int dashes = 0;
+                while ((ch = read()) != END_OF_FILE) {
+                    if (ch == '>' && dashes >= 2) {
+                        return;
+                    }
+                    dashes = ch == '-' ? dashes + 1 : 0;
+                }
+                return;
+            }
+        }
+        while (ch != END_OF_FILE && ch != '>') {
+            ch = read();
+        }
+    }
+
+    /**
+     * Skip the raw text of a SCRIPT or STYLE element, up to and including its end tag.
+     */
+    private void skipToEndTag(String tag) throws IOException {
+        int ch;
+        while ((ch = read()) != END_OF_FILE) {
+            if (ch != '<') {
+                continue;
+            }
+            ch = read();
+            if (ch != '/') {
+                unread(ch);
+                continue;
+            }
+            ch = read();
+            if (isNameChar(ch) && readName(ch).equalsIgnoreCase(tag)) {
+                while ((ch = read()) != END_OF_FILE && ch != '>') {
+                    // skip to the end of the end tag
+                }
+                return;
+            }
+        }
+    }
+
+    private static final Map<String, Character> ENTITIES = new HashMap<String, Character>();
+
+    static {
+        ENTITIES.put("amp", '&');
+        ENTITIES.put("quot", '"');
+        ENTITIES.put("apos", '\'');
+        ENTITIES.put("lt", '<');
+        ENTITIES.put("gt", '>');
+        ENTITIES.put("nbsp", '\u00A0');
+    }
+
+    /**
+     * Decode the character references ("&amp;amp;", "&amp;#38;", "&amp;#x26;") in an attribute value.
+     */
+    static String decodeReferences(String value) {
+        int amp = value.indexOf('&');
+        if (amp == -1) {
+            return value;
+        }
+        StringBuilder decoded = new StringBuilder(value.length());
+        int start = 0;
+        while (amp != -1) {
+            decoded.append(value, start, amp);
+            int semi = value.indexOf(';', amp);
+            int codePoint = -1;
+            if (semi != -1 && semi - amp <= 10) {
+                String ref = value.substring(amp + 1, semi);
+                try {
+                    if (ref.startsWith("#x") || ref.startsWith("#X")) {
+                        codePoint = Integer.parseInt(ref.substring(2), 16);
+                    } else if (ref.startsWith("#")) {
+                        codePoint = Integer.parseInt(ref.substring(1));
+                    } else {
+                        Character ch = ENTITIES.get(ref);
+                        codePoint = ch == null ? -1 : ch.charValue();
+                    }
+                } catch (NumberFormatException e) {
+                    codePoint = -1;
+                }
+            }
+            if (Character.isValidCodePoint(codePoint)) {
+                decoded.appendCodePoint(codePoint);
+                start = semi + 1;
+            } else {
+                decoded.append('&');
+                start = amp + 1;
+            }
+            amp = value.indexOf('&', start);
+        }
+        decoded.append(value, start, value.length());
+        return decoded.toString();
+    }
+}
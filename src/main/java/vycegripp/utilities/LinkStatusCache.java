@@ -0,0 +1,249 @@
+// =============================================================================
+// LinkStatusCache by Cary Scofield (carys689@gmail.com) is licensed under a
+// Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+// (See http://www.creativecommons.org for details).
+//
+// RECIPIENT ACCEPTS THE GOODS “AS IS,” WITH NO REPRESENTATION OR WARRANTY
+// OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION IMPLIED
+// WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.
+// =============================================================================
+
+package vycegripp.utilities;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * This class remembers the outcome of link checks from one run to the next.
+ * Each entry records the HTTP status a URL answered with, when it was
+ * checked, and the ETag and Last-Modified validators (if any) the server
+ * sent, so that an expired entry can be revalidated with a conditional
+ * request instead of a full one.
+ * </p>
+ * <p>
+ * Failed checks are remembered too, with the kind of failure, but only for
+ * a (normally much shorter) failure TTL: long enough that a broken link
+ * found on many pages isn't probed for each of them, short enough that a
+ * link that was only briefly broken is soon checked again. They carry no
+ * validators, so they are forgotten, not revalidated, once they expire.
+ * </p>
+ * <p>
+ * The whole cache is held in memory: every entry is kept in compact,
+ * serialized form (one line of text apiece), and the most recently used
+ * entries are also kept, parsed, in a bounded LRU map so that they needn't
+ * be parsed again. The file, if the cache has one, is only read when the
+ * cache is created and written by {@link #save}; memory use grows with the
+ * number of URLs, not with the size of the LRU map. The cache is safe for
+ * use by multiple threads.
+ * </p>
+ */
+public class LinkStatusCache {
+
+    private static final char SEP = '\t';
+
+    /**
+     * The remembered outcome of checking one URL.
+     */
+    public static final class Entry {
+        private final String url;
+        private final int status;
+        private final long checkedAt;
+        private final String etag;
+        private final String lastModified;
+        private final String failure;
+
+        public Entry(String url, int status, long checkedAt, String etag, String lastModified) {
+            this(url, status, checkedAt, etag, lastModified, null);
+        }
+
+        /**
+         * @param url
+         * @param status
+         * @param checkedAt
+         * @param etag
+         * @param lastModified
+         * @param failure The kind of failure if the check failed; <tt>null</tt> if it succeeded.
+         */
+        public Entry(String url, int status, long checkedAt, String etag, String lastModified, String failure) {
+            this.url = url;
+            this.status = status;
+            this.checkedAt = checkedAt;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.failure = failure;
+        }
+
+        public String getURL() { return this.url; }
+        public int getStatus() { return this.status; }
+        public long getCheckedAt() { return this.checkedAt; }
+        public String getETag() { return this.etag; }
+        public String getLastModified() { return this.lastModified; }
+        public String getFailure() { return this.failure; }
+
+        private String toLine() {
+            StringBuilder buf = new StringBuilder();
+            buf.append(this.url).append(SEP).append(this.status).append(SEP).append(this.checkedAt);
+            buf.append(SEP).append(this.etag == null ? "" : this.etag);
+            buf.append(SEP).append(this.lastModified == null ? "" : this.lastModified);
+            if (this.failure != null) {
+                buf.append(SEP).append(this.failure);
+            }
+            return buf.toString();
+        }
+
+        private static Entry fromLine(String line) {
+            String[] fields = line.split(String.valueOf(SEP), -1);
+            if (fields.length != 5 && fields.length != 6) {
+                return null;
+            }
+            try {
+                return new Entry(fields[0], Integer.parseInt(fields[1]), Long.parseLong(fields[2]),
+                        fields[3].length() == 0 ? null : fields[3],
+                        fields[4].length() == 0 ? null : fields[4],
+                        fields.length == 5 || fields[5].length() == 0 ? null : fields[5]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private final File file;
+    private final long ttlMillis;
+    private final long failedTtlMillis;
+    private final Map<String, String> lines = new ConcurrentHashMap<String, String>();
+    private final Map<String, Entry> memory;
+
+    /**
+     * @param file Where the cache is loaded from and saved to; <tt>null</tt> for an in-memory cache.
+     * @param ttlMillis How long an entry for a successful check stays fresh.
+     * @param failedTtlMillis How long an entry for a failed check stays fresh.
+     * @param memoryEntries How many parsed entries to keep in the LRU map.
+     * @throws IOException if the file exists but can't be read.
+     */
+    public LinkStatusCache(File file, long ttlMillis, long failedTtlMillis, final int memoryEntries)
+            throws IOException {
+        this.file = file;
+        this.ttlMillis = ttlMillis;
+        this.failedTtlMillis = failedTtlMillis;
+        this.memory = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > memoryEntries;
+            }
+        };
+        if (file != null && file.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Look up the entry for a URL, whether or not it is still fresh.
+     *
+     * @param url
+     * @return The entry, or <tt>null</tt> if the URL isn't in the cache.
+     */
+    public Entry get(String url) {
+        synchronized (this.memory) {
+            Entry entry = this.memory.get(url);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        String line = this.lines.get(url);
+        if (line == null) {
+            return null;
+        }
+        Entry entry = Entry.fromLine(line);
+        if (entry != null) {
+            synchronized (this.memory) {
+                this.memory.put(url, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Add or replace the entry for a URL.
+     *
+     * @param entry
+     */
+    public void put(Entry entry) {
+        synchronized (this.memory) {
+            this.memory.put(entry.getURL(), entry);
+        }
+        this.lines.put(entry.getURL(), entry.toLine());
+    }
+
+    /**
+     * @param entry
+     * @return <tt>true</tt> if the entry is young enough to be trusted without revalidation.
+     */
+    public boolean isFresh(Entry entry) {
+        long ttl = entry.getFailure() == null ? this.ttlMillis : this.failedTtlMillis;
+        return System.currentTimeMillis() - entry.getCheckedAt() < ttl;
+    }
+
+    public int size() {
+        return this.lines.size();
+    }
+
+    /**
+     * Write the cache to its file (if it has one). Expired entries that
+     * can't be revalidated (no ETag or Last-Modified) are left out. The
+     * file is replaced in one step so a crash can't leave it half-written.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        if (this.file == null) {
+            return;
+        }
+        File parent = this.file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(this.file.getName(), ".tmp", parent);
+        try {
+            BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8);
+            try {
+                for (String line : this.lines.values()) {
+                    Entry entry = Entry.fromLine(line);
+                    if (entry == null) {
+                        continue;
+                    }
+                    if (!isFresh(entry) && entry.getETag() == null && entry.getLastModified() == null) {
+                        continue;
+                    }
+                    writer.write(line);
+                    writer.newLine();
+                }
+            } finally {
+                writer.close();
+            }
+            Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp.toPath()); // gone already unless writing or moving it failed
+        }
+    }
+
+    private void load() throws IOException {
+        BufferedReader reader = Files.newBufferedReader(this.file.toPath(), StandardCharsets.UTF_8);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf(SEP);
+                if (tab > 0) {
+                    this.lines.put(line.substring(0, tab), line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
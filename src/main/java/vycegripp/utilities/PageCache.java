@@ -0,0 +1,221 @@
+// =============================================================================
+// PageCache by Cary Scofield (carys689@gmail.com) is licensed under a
+// Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+// (See http://www.creativecommons.org for details).
+//
+// RECIPIENT ACCEPTS THE GOODS “AS IS,” WITH NO REPRESENTATION OR WARRANTY
+// OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION IMPLIED
+// WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.
+// =============================================================================
+
+package vycegripp.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * <p>
+ * The standard {@link PageReader.Cache}: pages are held in memory in an LRU
+ * map bounded by their total size in bytes and, if the cache is given a
+ * directory, on disk as well, so that they survive from one run to the
+ * next. A page evicted from memory is still found on disk.
+ * </p>
+ * <p>
+ * Each page on disk takes two files named after a hash of its URI: the
+ * body, and a properties file holding the URI, charset, validators and
+ * the body's length and SHA-256 hash. Each file is written in full before
+ * it replaces the old one, the body first, and a page is only read back if
+ * its body matches the length and hash; so a crash between the two, or two
+ * threads storing the same page at once, can't pair a body with the wrong
+ * validators. The cache is safe for use by multiple threads.
+ * </p>
+ */
+public class PageCache implements PageReader.Cache {
+
+    private final File directory;
+    private final long maxMemoryBytes;
+    private final LinkedHashMap<String, PageReader.Content> memory =
+            new LinkedHashMap<String, PageReader.Content>(16, 0.75f, true);
+    private long memoryBytes = 0;
+
+    /**
+     * @param directory Where to keep pages on disk; <tt>null</tt> for an in-memory cache.
+     * It is created if need be.
+     * @param maxMemoryBytes Most bytes of pages to keep in memory.
+     * @throws IOException if the directory can't be created.
+     */
+    public PageCache(File directory, long maxMemoryBytes) throws IOException {
+        this.directory = directory;
+        this.maxMemoryBytes = maxMemoryBytes;
+        if (directory != null) {
+            Files.createDirectories(directory.toPath());
+        }
+    }
+
+    @Override
+    public PageReader.Content get(URI uri) {
+        String key = uri.toString();
+        synchronized (this.memory) {
+            PageReader.Content content = this.memory.get(key);
+            if (content != null) {
+                return content;
+            }
+        }
+        PageReader.Content content = load(key);
+        if (content != null) {
+            remember(key, content);
+        }
+        return content;
+    }
+
+    @Override
+    public void put(URI uri, PageReader.Content content) {
+        String key = uri.toString();
+        remember(key, content);
+        if (this.directory != null) {
+            try {
+                store(key, content);
+            } catch (IOException e) {
+                System.err.println(e.toString() + " caching " + key);
+            }
+        }
+    }
+
+    /**
+     * @return Bytes of pages held in memory.
+     */
+    public long getMemoryBytes() {
+        synchronized (this.memory) {
+            return this.memoryBytes;
+        }
+    }
+
+    private void remember(String key, PageReader.Content content) {
+        long size = content.getBytes().remaining();
+        if (size > this.maxMemoryBytes) {
+            return; // would evict everything else
+        }
+        synchronized (this.memory) {
+            PageReader.Content old = this.memory.put(key, content);
+            if (old != null) {
+                this.memoryBytes -= old.getBytes().remaining();
+            }
+            this.memoryBytes += size;
+            Iterator<Map.Entry<String, PageReader.Content>> eldest = this.memory.entrySet().iterator();
+            while (this.memoryBytes > this.maxMemoryBytes && eldest.hasNext()) {
+                this.memoryBytes -= eldest.next().getValue().getBytes().remaining();
+                eldest.remove();
+            }
+        }
+    }
+
+    private PageReader.Content load(String key) {
+        if (this.directory == null) {
+            return null;
+        }
+        String name = fileName(key);
+        File metaFile = new File(this.directory, name + ".properties");
+        File bodyFile = new File(this.directory, name + ".body");
+        if (!metaFile.exists() || !bodyFile.exists()) {
+            return null;
+        }
+        try {
+            Properties meta = new Properties();
+            InputStream is = Files.newInputStream(metaFile.toPath());
+            try {
+                meta.load(is);
+            } finally {
+                is.close();
+            }
+            if (!key.equals(meta.getProperty("uri"))) {
+                return null; // hash collision, however unlikely
+            }
+            byte[] body = Files.readAllBytes(bodyFile.toPath());
+            if (!String.valueOf(body.length).equals(meta.getProperty("length"))
+                    || !hex(sha256(body), 32).equals(meta.getProperty("sha256"))) {
+                return null; // the body isn't the one the properties describe
+            }
+            return new PageReader.Content(ByteBuffer.wrap(body), Charset.forName(meta.getProperty("charset")), 0,
+                    meta.getProperty("etag"), meta.getProperty("lastModified"));
+        } catch (Exception e) {
+            System.err.println(e.toString() + " reading cached " + key);
+            return null;
+        }
+    }
+
+    private void store(String key, PageReader.Content content) throws IOException {
+        String name = fileName(key);
+        Properties meta = new Properties();
+        meta.setProperty("uri", key);
+        meta.setProperty("charset", content.getCharset().name());
+        if (content.getETag() != null) {
+            meta.setProperty("etag", content.getETag());
+        }
+        if (content.getLastModified() != null) {
+            meta.setProperty("lastModified", content.getLastModified());
+        }
+        ByteBuffer bytes = content.getBytes();
+        byte[] body = new byte[bytes.remaining()];
+        bytes.get(body);
+        meta.setProperty("length", String.valueOf(body.length));
+        meta.setProperty("sha256", hex(sha256(body), 32));
+        // Once moved, a temp file is gone and deleting it does nothing; if
+        // writing or moving it failed, deleting it keeps it from piling up.
+        File bodyTemp = File.createTempFile(name, ".tmp", this.directory);
+        try {
+            Files.write(bodyTemp.toPath(), body);
+            Files.move(bodyTemp.toPath(), new File(this.directory, name + ".body").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(bodyTemp.toPath());
+        }
+        File metaTemp = File.createTempFile(name, ".tmp", this.directory);
+        try {
+            OutputStream os = Files.newOutputStream(metaTemp.toPath());
+            try {
+                meta.store(os, null);
+            } finally {
+                os.close();
+            }
+            Files.move(metaTemp.toPath(), new File(this.directory, name + ".properties").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(metaTemp.toPath());
+        }
+    }
+
+    private static String fileName(String key) {
+        return hex(sha256(key.getBytes(StandardCharsets.UTF_8)), 20);
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JRE has SHA-256
+        }
+    }
+
+    // The first n bytes, in lower-case hex.
+    private static String hex(byte[] bytes, int n) {
+        StringBuilder hex = new StringBuilder(2 * n);
+        for (int i = 0; i < n; ++i) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16)).append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,290 @@
+// =============================================================================
+// PageFetcher by Cary Scofield (carys689@gmail.com) is licensed under a
+// Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+// (See http://www.creativecommons.org for details).
+//
+// RECIPIENT ACCEPTS THE GOODS “AS IS,” WITH NO REPRESENTATION OR WARRANTY
+// OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION IMPLIED
+// WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.
+// =============================================================================
+
+package vycegripp.utilities;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * This class reads pages with {@link PageReader#read(URI)} on behalf of any
+ * number of callers, never more than a fixed number at once, and keeps
+ * statistics about the reads, overall and for each host: how many pages,
+ * how many bytes (on the wire and decoded) and histograms of the time to
+ * the first byte and of the total time, in nanoseconds.
+ * </p>
+ * <p>
+ * Pages may be read in the caller's thread ({@link #fetch}) or handed to
+ * the fetcher's own threads ({@link #submit}, {@link #submitAll}). Those
+ * threads live as long as the fetcher, so the read buffers PageReader
+ * keeps for each thread are reused from one page to the next. Programs
+ * that have no reason to keep their reads apart can all use the
+ * {@link #shared()} fetcher. A fetcher is safe for use by multiple threads.
+ * </p>
+ */
+public class PageFetcher implements Closeable {
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 8;
+
+    /**
+     * Statistics for a set of page reads.
+     */
+    public static final class Stats {
+        private final LongAdder fetches = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder wireBytes = new LongAdder();
+        private final LongAdder decodedBytes = new LongAdder();
+        private final LatencyHistogram firstByteNanos = new LatencyHistogram();
+        private final LatencyHistogram totalNanos = new LatencyHistogram();
+
+        void record(PageReader.Content content) {
+            this.fetches.increment();
+            this.wireBytes.add(content.getWireBytes());
+            this.decodedBytes.add(content.getDecodedBytes());
+            this.firstByteNanos.record(content.getFirstByteNanos());
+            this.totalNanos.record(content.getTotalNanos());
+        }
+
+        void recordFailure() {
+            this.failures.increment();
+        }
+
+        /**
+         * @return Pages read successfully.
+         */
+        public long getFetches() {
+            return this.fetches.sum();
+        }
+
+        /**
+         * @return Reads that failed.
+         */
+        public long getFailures() {
+            return this.failures.sum();
+        }
+
+        /**
+         * @return Bytes that crossed the wire (0 for pages revalidated from the cache).
+         */
+        public long getWireBytes() {
+            return this.wireBytes.sum();
+        }
+
+        /**
+         * @return Bytes of the pages after content-encoding was undone.
+         */
+        public long getDecodedBytes() {
+            return this.decodedBytes.sum();
+        }
+
+        /**
+         * @return Nanoseconds to the first byte of each page read.
+         */
+        public LatencyHistogram getFirstByteNanos() {
+            return this.firstByteNanos;
+        }
+
+        /**
+         * @return Nanoseconds to read each page in full.
+         */
+        public LatencyHistogram getTotalNanos() {
+            return this.totalNanos;
+        }
+    }
+
+    private static final class SharedHolder {
+        static final PageFetcher SHARED = new PageFetcher(DEFAULT_MAX_CONCURRENCY);
+    }
+
+    private static final AtomicInteger FETCHER_NUMBER = new AtomicInteger();
+
+    private final int maxConcurrency;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+    private final Stats stats = new Stats();
+    private final ConcurrentHashMap<String, Stats> hostStats = new ConcurrentHashMap<String, Stats>();
+
+    /**
+     * @param maxConcurrency Most pages to read at once, whether in callers'
+     * threads or the fetcher's own.
+     */
+    public PageFetcher(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1: " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.permits = new Semaphore(maxConcurrency, true);
+        final String prefix = "PageFetcher-" + FETCHER_NUMBER.incrementAndGet() + "-";
+        this.executor = Executors.newFixedThreadPool(maxConcurrency, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + this.threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return The fetcher shared by everything in this JVM, reading at most
+     * {@link #DEFAULT_MAX_CONCURRENCY} pages at once. It is never closed.
+     */
+    public static PageFetcher shared() {
+        return SharedHolder.SHARED;
+    }
+
+    public int getMaxConcurrency() {
+        return this.maxConcurrency;
+    }
+
+    /**
+     * Read a page in the caller's thread, waiting first if the most pages
+     * the fetcher allows are already being read.
+     *
+     * @param uri
+     * @return The page.
+     * @throws Exception from {@link PageReader#read(URI)}.
+     */
+    public PageReader.Content fetch(URI uri) throws Exception {
+        return fetch(uri, (String[]) null);
+    }
+
+    /**
+     * Read a page in the caller's thread, as {@link #fetch(URI)} does, but
+     * only if it is of one of the given media types (see
+     * {@link PageReader#read(URI, String...)}). Pages of other types are
+     * left out of the statistics.
+     *
+     * @param uri
+     * @param mediaTypes The media types wanted; <tt>null</tt> for any.
+     * @return The page; <tt>null</tt> if it is of some other type.
+     * @throws Exception from {@link PageReader#read(URI, String...)}.
+     */
+    public PageReader.Content fetch(URI uri, String... mediaTypes) throws Exception {
+        this.permits.acquire();
+        try {
+            PageReader.Content content = PageReader.read(uri, mediaTypes);
+            if (content != null) {
+                this.stats.record(content);
+                statsFor(uri).record(content);
+            }
+            return content;
+        } catch (Exception e) {
+            this.stats.recordFailure();
+            statsFor(uri).recordFailure();
+            throw e;
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    /**
+     * Read a page in one of the fetcher's threads.
+     *
+     * @param uri
+     * @return The page, when it has been read.
+     */
+    public CompletableFuture<PageReader.Content> submit(final URI uri) {
+        final CompletableFuture<PageReader.Content> future = new CompletableFuture<PageReader.Content>();
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(fetch(uri));
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Read a number of pages in the fetcher's threads.
+     *
+     * @param uris
+     * @return The pages, in the order of the URIs.
+     */
+    public List<CompletableFuture<PageReader.Content>> submitAll(Collection<URI> uris) {
+        List<CompletableFuture<PageReader.Content>> futures = new ArrayList<CompletableFuture<PageReader.Content>>(uris.size());
+        for (URI uri : uris) {
+            futures.add(submit(uri));
+        }
+        return futures;
+    }
+
+    /**
+     * @return Statistics for every read.
+     */
+    public Stats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * @param host
+     * @return Statistics for the reads from a host (the scheme, for URIs
+     * without one); <tt>null</tt> if nothing has been read from it.
+     */
+    public Stats getStats(String host) {
+        return this.hostStats.get(host);
+    }
+
+    /**
+     * @return Statistics for each host read from.
+     */
+    public Map<String, Stats> getHostStats() {
+        return Collections.unmodifiableMap(new HashMap<String, Stats>(this.hostStats));
+    }
+
+    /**
+     * Stop the fetcher's threads once the pages already submitted have been
+     * read. The shared fetcher can't be closed.
+     */
+    @Override
+    public void close() {
+        if (this == SharedHolder.SHARED) {
+            return;
+        }
+        this.executor.shutdown();
+    }
+
+    private Stats statsFor(URI uri) {
+        String host = uri.getHost();
+        if (host == null) {
+            host = String.valueOf(uri.getScheme());
+        }
+        Stats hostStats = this.hostStats.get(host);
+        if (hostStats == null) {
+            Stats newStats = new Stats();
+            hostStats = this.hostStats.putIfAbsent(host, newStats);
+            if (hostStats == null) {
+                hostStats = newStats;
+            }
+        }
+        return hostStats;
+    }
+}
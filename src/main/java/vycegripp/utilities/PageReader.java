@@ -11,11 +11,50 @@
 package vycegripp.utilities;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.net.ConnectException;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * <p>
@@ -28,10 +67,287 @@ import java.net.URLConnection;
  * data through the getPage() method, in which case the PageReader object keeps
  * the data in its own space.
  * </p>
+ * <p>
+ * Pages are read in bulk, into a reusable per-thread buffer, and decoded
+ * with the charset the server names (or the page declares), UTF-8
+ * failing that. Callers that don't need text can take the raw bytes
+ * from {@link #read(URI)} instead.
+ * </p>
+ * <p>
+ * {@link #readAsync(URI)} and {@link #readPageAsync(URI)} fetch a page
+ * without blocking the caller or tying up a thread while waiting: HTTP
+ * pages through the JDK's non-blocking HTTP client, <tt>file:</tt> pages
+ * through an asynchronous file channel. Hundreds of fetches can be in
+ * flight at once.
+ * </p>
+ * <p>
+ * If a {@link Cache} is installed with {@link #setCache(Cache)}, a page
+ * that has been read before is revalidated with a conditional GET (using
+ * the ETag and Last-Modified the server sent last time) and, if the
+ * server says it hasn't changed, served from the cache rather than
+ * downloaded again.
+ * </p>
+ * <p>
+ * For pages too big to hold in memory, {@link #lines(URI)} and
+ * {@link #chunks(URI, int)} stream the decoded page a line or a chunk at
+ * a time through a small fixed buffer, so even a huge page is processed
+ * in constant memory.
+ * </p>
+ * <p>
+ * HTTP pages are asked for gzip- or deflate-compressed and decompressed
+ * as they are read, so pages cross the network at a fraction of their
+ * size. {@link Content} reports both the bytes that crossed the network
+ * and the decoded bytes.
+ * </p>
+ * <p>
+ * Local (<tt>file:</tt>) pages are memory-mapped rather than read, so even
+ * a capture of hundreds of megabytes is "read" at once and takes no heap.
+ * {@link Content#getChars()} gives the text of a page in a single-byte
+ * charset (or plain ASCII) as a view of the bytes, without copying them.
+ * </p>
  */
 public class PageReader {
 
+    private static final int CHUNK_SIZE = 65536;
+    private static final int MAX_SNIFF = 1024; // how far into the page to look for a <meta> charset
+    private static final int DEFAULT_CONNECT_TIMEOUT = 180000;
+    private static final int DEFAULT_READ_TIMEOUT = 180000;
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    // Each thread reads through its own chunk buffer, reused page after page.
+    private static final ThreadLocal<byte[]> CHUNK = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
+    /**
+     * Where pages are kept for revalidation, keyed by URI.
+     */
+    public interface Cache {
+        /**
+         * @param uri
+         * @return The page as last read, or <tt>null</tt> if it isn't in the cache.
+         */
+        Content get(URI uri);
+
+        /**
+         * @param uri
+         * @param content The page just read (it has an ETag or a Last-Modified, or both).
+         */
+        void put(URI uri, Content content);
+    }
+
+    private static volatile Cache cache = null;
+
+    /**
+     * Install the cache to be used for HTTP pages by every PageReader call.
+     *
+     * @param newCache <tt>null</tt> for none.
+     */
+    public static void setCache(Cache newCache) {
+        cache = newCache;
+    }
+
+    public static Cache getCache() {
+        return cache;
+    }
+
+    /**
+     * The content of a page: its raw bytes, the charset they are in and
+     * the validators (if any) the server sent with them.
+     */
+    public static final class Content {
+        private final ByteBuffer bytes;
+        private final Charset charset;
+        private final long time;
+        private final String etag;
+        private final String lastModified;
+        private final long wireBytes;
+        private final long firstByteNanos;
+        private final long totalNanos;
+
+        public Content(ByteBuffer bytes, Charset charset, long time, String etag, String lastModified) {
+            this(bytes, charset, etag, lastModified, bytes.remaining(), 0, time * 1000000L);
+        }
+
+        Content(ByteBuffer bytes, Charset charset, String etag, String lastModified, long wireBytes,
+                long firstByteNanos, long totalNanos) {
+            this.bytes = bytes;
+            this.charset = charset;
+            this.time = totalNanos / 1000000L;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.wireBytes = wireBytes;
+            this.firstByteNanos = firstByteNanos;
+            this.totalNanos = totalNanos;
+        }
+
+        public String getETag() {
+            return this.etag;
+        }
+
+        public String getLastModified() {
+            return this.lastModified;
+        }
+
+        // The same content, read again (revalidated) in the given time.
+        Content reread(long newFirstByteNanos, long newTotalNanos) {
+            return new Content(this.bytes, this.charset, this.etag, this.lastModified, 0, newFirstByteNanos, newTotalNanos);
+        }
+
+        /**
+         * @return The raw bytes (a read-only view; the position is 0, the limit the length).
+         */
+        public ByteBuffer getBytes() {
+            return this.bytes.asReadOnlyBuffer();
+        }
+
+        public Charset getCharset() {
+            return this.charset;
+        }
+
+        /**
+         * @return Milliseconds taken to read the page.
+         */
+        public long getTime() {
+            return this.time;
+        }
+
+        /**
+         * @return Nanoseconds from starting the read to the arrival of the
+         * response headers (time to first byte).
+         */
+        public long getFirstByteNanos() {
+            return this.firstByteNanos;
+        }
+
+        /**
+         * @return Nanoseconds taken to read the whole page.
+         */
+        public long getTotalNanos() {
+            return this.totalNanos;
+        }
+
+        /**
+         * @return Bytes that crossed the network (or were read from the
+         * file) for the page: fewer than the decoded bytes if it came
+         * compressed, none if it came from the cache.
+         */
+        public long getWireBytes() {
+            return this.wireBytes;
+        }
+
+        /**
+         * @return Bytes of the page once decompressed.
+         */
+        public long getDecodedBytes() {
+            return this.bytes.remaining();
+        }
+
+        /**
+         * @return The page decoded to text (malformed input is replaced, not rejected).
+         */
+        public StringBuilder getText() {
+            CharBuffer chars = decodeChars();
+            return new StringBuilder(chars.remaining()).append(chars);
+        }
+
+        /**
+         * The page as text, without copying it if that can be helped: if
+         * every byte is a char of its own (ISO-8859-1, or UTF-8 or ASCII
+         * that turns out to be plain ASCII), the text is a read-only view
+         * of the bytes; otherwise the page is decoded as by {@link #getText()}.
+         *
+         * @return The page as text.
+         */
+        public CharSequence getChars() {
+            if (isOneBytePerChar(this.charset, this.bytes)) {
+                return new Latin1Chars(this.bytes.duplicate());
+            }
+            return decodeChars();
+        }
+
+        private CharBuffer decodeChars() {
+            try {
+                return this.charset.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                        .decode(this.bytes.duplicate());
+            } catch (CharacterCodingException e) {
+                throw new IllegalStateException(e); // can't happen when replacing
+            }
+        }
+    }
+
+    // A read-only view of bytes as ISO-8859-1 chars.
+    private static final class Latin1Chars implements CharSequence {
+        private final ByteBuffer bytes;
+
+        Latin1Chars(ByteBuffer bytes) {
+            this.bytes = bytes.slice();
+        }
+
+        @Override
+        public int length() {
+            return this.bytes.limit();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (this.bytes.get(index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length() || start > end) {
+                throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length());
+            }
+            ByteBuffer sub = this.bytes.duplicate();
+            sub.position(start).limit(end);
+            return new Latin1Chars(sub);
+        }
+
+        @Override
+        public String toString() {
+            return StandardCharsets.ISO_8859_1.decode(this.bytes.duplicate()).toString();
+        }
+    }
+
+    // Whether each byte of the page is one char in its charset.
+    private static boolean isOneBytePerChar(Charset charset, ByteBuffer bytes) {
+        if (charset.equals(StandardCharsets.ISO_8859_1)) {
+            return true;
+        }
+        if (!charset.equals(StandardCharsets.UTF_8) && !charset.equals(StandardCharsets.US_ASCII)) {
+            return false;
+        }
+        ByteBuffer rest = bytes.duplicate();
+        byte[] chunk = CHUNK.get();
+        while (rest.hasRemaining()) {
+            int n = Math.min(chunk.length, rest.remaining());
+            rest.get(chunk, 0, n);
+            for (int i = 0; i < n; ++i) {
+                if (chunk[i] < 0) {
+                    return false; // not ASCII
+                }
+            }
+        }
+        return true;
+    }
+
+    // Shared by all asynchronous HTTP fetches; created on first use.
+    private static final class AsyncClientHolder {
+        static final HttpClient CLIENT = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(DEFAULT_CONNECT_TIMEOUT))
+                .build();
+    }
+
     private long time = 0;
+    private long wireBytes = 0;
+    private long decodedBytes = 0;
     private StringBuilder page = null;
     private String uriPath = null;
 
@@ -61,57 +377,626 @@ public class PageReader {
         return this.time;
     }
 
+    /**
+     * @return Bytes of the page (as last read) that crossed the network.
+     */
+    public long getWireBytes() {
+        return this.wireBytes;
+    }
+
+    /**
+     * @return Bytes of the page (as last read) once decompressed.
+     */
+    public long getDecodedBytes() {
+        return this.decodedBytes;
+    }
+
     private void _readPage(URI uri) throws Exception {
-        InputStream is = null;
+        Content content = read(uri);
+        this.page.append(content.getText());
+        this.time = content.getTime();
+        this.wireBytes = content.getWireBytes();
+        this.decodedBytes = content.getDecodedBytes();
+    }
+
+    /**
+     * Read the page from the input stream.
+     *
+     * @param uri
+     * @return A CharSequence object containing contents read from input stream.
+     * @throws Exception
+     */
+    public static StringBuilder readPage(URI uri) throws Exception {
+        return read(uri).getText();
+    }
+
+    /**
+     * Read the whole page as raw bytes, noting the charset it is in: the
+     * one named in the Content-Type header or else one declared by a
+     * byte order mark or a &lt;meta&gt; tag near the top of the page, or
+     * else UTF-8. The bytes are read in bulk; if the server gives the
+     * length, straight into a buffer of exactly that size. With a cache
+     * installed, an HTTP page is only downloaded if it has changed. A local
+     * file is memory-mapped instead (see {@link #readFile(URI)}).
+     *
+     * @param uri
+     * @return The page content.
+     * @throws Exception
+     */
+    public static Content read(URI uri) throws Exception {
+        return read(uri, (String[]) null);
+    }
+
+    /**
+     * Read the whole page as {@link #read(URI)} does, but only if it is of
+     * one of the given media types. The type is judged from the response
+     * headers (for a file, from its name), before any of the body is read.
+     * A page whose type isn't known is read.
+     *
+     * @param uri
+     * @param mediaTypes The media types wanted, such as "text/html";
+     * <tt>null</tt> for any.
+     * @return The page content; <tt>null</tt> if the page is of some other type.
+     * @throws Exception
+     */
+    public static Content read(URI uri, String... mediaTypes) throws Exception {
+        if (uri != null && "file".equalsIgnoreCase(uri.getScheme())) {
+            if (!isMediaType(URLConnection.guessContentTypeFromName(uri.getPath()), mediaTypes)) {
+                return null;
+            }
+            Content content = readFile(uri);
+            if (content != null) {
+                return content;
+            }
+        }
+        long startTime = System.nanoTime();
+        URLConnection connection = openConnection(uri);
+        Cache pageCache = cache;
+        Content cached = null;
+        if (pageCache != null && connection instanceof HttpURLConnection) {
+            cached = pageCache.get(uri);
+            if (cached != null) {
+                if (cached.getETag() != null) {
+                    connection.setRequestProperty("If-None-Match", cached.getETag());
+                }
+                if (cached.getLastModified() != null) {
+                    connection.setRequestProperty("If-Modified-Since", cached.getLastModified());
+                }
+            }
+        }
+        CountingInputStream wire;
         try {
-            long startTime = System.currentTimeMillis();
-            is = openURI(uri);
-            StringBuilder buf = this.page;
-            final int END_OF_FILE = -1;
-            int ch;
-            while ((ch = is.read()) != END_OF_FILE) {
-                buf.append((char) ch);
-            }
-            long endTime = System.currentTimeMillis();
-            this.time = endTime - startTime;
+            if (cached != null && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                ((HttpURLConnection) connection).disconnect();
+                long elapsed = System.nanoTime() - startTime;
+                return cached.reread(elapsed, elapsed);
+            }
+            wire = new CountingInputStream(connection.getInputStream());
         } catch (Exception e) {
             System.err.println(e.toString());
-            throw e;
+            throw new java.io.IOException("Unable to open URI: " + uri, e);
+        }
+        if (!isMediaType(connection.getContentType(), mediaTypes)) {
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).disconnect(); // don't download the body
+            } else {
+                wire.close();
+            }
+            return null;
+        }
+        long firstByte = System.nanoTime() - startTime;
+        InputStream is = wire;
+        try {
+            String encoding = connection.getContentEncoding();
+            is = decode(wire, encoding);
+            ByteBuffer bytes = readFully(is, is == wire ? connection.getContentLengthLong() : -1);
+            Charset charset = getCharset(connection.getContentType(), bytes);
+            Content content = new Content(bytes, charset,
+                    connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"), wire.getCount(),
+                    firstByte, System.nanoTime() - startTime);
+            cacheContent(pageCache, uri, content);
+            return content;
         } finally {
-            if (is != null) {
-                is.close();
+            is.close();
+        }
+    }
+
+    /**
+     * Memory-map a local file. The content's bytes are the mapping itself,
+     * so nothing is copied onto the heap and pages of the file are only
+     * loaded as they are looked at. The mapping lasts until the content
+     * is garbage collected.
+     *
+     * @param uri A file URI.
+     * @return The file content; <tt>null</tt> if the URI doesn't name a
+     * file on the default file system (it is then read like any other URI).
+     * @throws IOException if the file can't be read or is too large to map.
+     */
+    private static Content readFile(URI uri) throws IOException {
+        long startTime = System.nanoTime();
+        Path path;
+        try {
+            path = Paths.get(uri);
+        } catch (IllegalArgumentException e) {
+            return null;
+        } catch (FileSystemNotFoundException e) {
+            return null;
+        }
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (IOException e) {
+            System.err.println(e.toString());
+            throw new java.io.IOException("Unable to open URI: " + uri, e);
+        }
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new java.io.IOException("File too large to map: " + uri);
             }
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            long elapsed = System.nanoTime() - startTime;
+            return new Content(bytes, getCharset(null, bytes), null, null, size, elapsed, elapsed);
+        } finally {
+            channel.close(); // the mapping outlives the channel
         }
     }
 
     /**
-     * Read the page from the input stream.
+     * @param contentType A Content-Type header (parameters and all); may be <tt>null</tt>.
+     * @param mediaTypes The media types wanted; <tt>null</tt> for any.
+     * @return <tt>true</tt> if the content is of one of the types, or of no
+     * known type.
+     */
+    public static boolean isMediaType(String contentType, String... mediaTypes) {
+        if (mediaTypes == null || contentType == null) {
+            return true;
+        }
+        String type = contentType;
+        int semi = type.indexOf(';');
+        if (semi != -1) {
+            type = type.substring(0, semi);
+        }
+        type = type.trim().toLowerCase(Locale.ROOT);
+        if (type.length() == 0 || type.equals("content/unknown")) {
+            return true;
+        }
+        for (String mediaType : mediaTypes) {
+            if (type.equals(mediaType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void cacheContent(Cache pageCache, URI uri, Content content) {
+        if (pageCache != null && (content.getETag() != null || content.getLastModified() != null)) {
+            pageCache.put(uri, content);
+        }
+    }
+
+    /**
+     * Start reading the whole page, without waiting for it (see {@link #read(URI)}).
+     *
+     * @param uri An http, https or file URI (other schemes are read on a
+     * pool thread with the blocking {@link #read(URI)}).
+     * @return A future that completes with the page content, or
+     * exceptionally if the page can't be read (an HTTP error status counts).
+     */
+    public static CompletableFuture<Content> readAsync(final URI uri) {
+        if (uri == null) {
+            throw new IllegalArgumentException("uri is null");
+        }
+        final String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+        if (scheme.equals("http") || scheme.equals("https")) {
+            return readHttpAsync(uri);
+        }
+        if (scheme.equals("file")) {
+            return readFileAsync(uri);
+        }
+        return CompletableFuture.supplyAsync(new Supplier<Content>() {
+            @Override
+            public Content get() {
+                try {
+                    return read(uri);
+                } catch (Exception e) {
+                    throw new java.util.concurrent.CompletionException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Start reading the page as text, without waiting for it.
      *
      * @param uri
-     * @return A CharSequence object containing contents read from input stream.
-     * @throws Exception
+     * @return A future that completes with the decoded page.
      */
-    public static StringBuilder readPage(URI uri) throws Exception {
-        InputStream is = null;
-        StringBuilder page = null;
+    public static CompletableFuture<StringBuilder> readPageAsync(URI uri) {
+        return readAsync(uri).thenApply(new Function<Content, StringBuilder>() {
+            @Override
+            public StringBuilder apply(Content content) {
+                return content.getText();
+            }
+        });
+    }
+
+    private static CompletableFuture<Content> readHttpAsync(final URI uri) {
+        final long startTime = System.nanoTime();
+        final long[] firstByte = new long[1]; // set when the response headers arrive
+        final Cache pageCache = cache;
+        final Content cached = pageCache == null ? null : pageCache.get(uri);
+        final HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofMillis(DEFAULT_READ_TIMEOUT))
+                .header("Accept-Encoding", ACCEPT_ENCODING)
+                .GET();
+        if (cached != null) {
+            if (cached.getETag() != null) {
+                request.header("If-None-Match", cached.getETag());
+            }
+            if (cached.getLastModified() != null) {
+                request.header("If-Modified-Since", cached.getLastModified());
+            }
+        }
+        final HttpResponse.BodyHandler<byte[]> handler = new HttpResponse.BodyHandler<byte[]>() {
+            @Override
+            public HttpResponse.BodySubscriber<byte[]> apply(HttpResponse.ResponseInfo info) {
+                firstByte[0] = System.nanoTime() - startTime;
+                return HttpResponse.BodySubscribers.ofByteArray();
+            }
+        };
+        return AsyncClientHolder.CLIENT.sendAsync(request.build(), handler)
+                .thenApply(new Function<HttpResponse<byte[]>, Content>() {
+                    @Override
+                    public Content apply(HttpResponse<byte[]> response) {
+                        if (cached != null && response.statusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                            return cached.reread(firstByte[0], System.nanoTime() - startTime);
+                        }
+                        if (response.statusCode() >= 400) {
+                            throw new java.util.concurrent.CompletionException(new java.io.IOException(
+                                    "Unable to open URI: " + uri + " (" + response.statusCode() + ")"));
+                        }
+                        final byte[] body = response.body();
+                        ByteBuffer bytes = ByteBuffer.wrap(body);
+                        String encoding = response.headers().firstValue("Content-Encoding").orElse(null);
+                        if (encoding != null && !encoding.trim().equalsIgnoreCase("identity")) {
+                            try {
+                                bytes = readFully(decode(new ByteArrayInputStream(body), encoding), -1);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }
+                        Charset charset = getCharset(response.headers().firstValue("Content-Type").orElse(null), bytes);
+                        Content content = new Content(bytes, charset,
+                                response.headers().firstValue("ETag").orElse(null),
+                                response.headers().firstValue("Last-Modified").orElse(null), body.length,
+                                firstByte[0], System.nanoTime() - startTime);
+                        cacheContent(pageCache, uri, content);
+                        return content;
+                    }
+                });
+    }
+
+    private static CompletableFuture<Content> readFileAsync(final URI uri) {
+        final long startTime = System.nanoTime();
+        final CompletableFuture<Content> future = new CompletableFuture<Content>();
         try {
-            is = openURI(uri);
-            page = new StringBuilder();
-            final int END_OF_FILE = -1;
-            int ch;
-            while ((ch = is.read()) != END_OF_FILE) {
-                page.append((char) ch);
+            final AsynchronousFileChannel channel = AsynchronousFileChannel.open(Paths.get(uri), StandardOpenOption.READ);
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE - 8) {
+                channel.close();
+                throw new java.io.IOException("File too large: " + uri);
             }
+            final ByteBuffer bytes = ByteBuffer.allocate((int) size);
+            channel.read(bytes, 0L, null, new CompletionHandler<Integer, Void>() {
+                private long firstByte = -1;
+
+                @Override
+                public void completed(Integer n, Void attachment) {
+                    if (this.firstByte < 0) {
+                        this.firstByte = System.nanoTime() - startTime;
+                    }
+                    if (n.intValue() >= 0 && bytes.hasRemaining()) {
+                        channel.read(bytes, bytes.position(), null, this);
+                        return;
+                    }
+                    closeQuietly(channel);
+                    bytes.flip();
+                    future.complete(new Content(bytes, getCharset(null, bytes), null, null, bytes.remaining(),
+                            this.firstByte, System.nanoTime() - startTime));
+                }
+
+                @Override
+                public void failed(Throwable t, Void attachment) {
+                    closeQuietly(channel);
+                    future.completeExceptionally(t);
+                }
+            });
         } catch (Exception e) {
-            throw e;
-        } finally {
-            if (is != null) {
-                is.close();
-            } else {
-                throw new java.io.IOException("Unable to open URI: " + uri);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static void closeQuietly(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (java.io.IOException e) {
+            // ignore
+        }
+    }
+
+    private static ByteBuffer readFully(InputStream is, long contentLength) throws java.io.IOException {
+        byte[] data = new byte[contentLength > 0 && contentLength < Integer.MAX_VALUE - 8 ? (int) contentLength : CHUNK_SIZE];
+        int length = 0;
+        int n;
+        if (contentLength > 0) {
+            // Read straight into the result until it is full...
+            while (length < data.length && (n = is.read(data, length, data.length - length)) != -1) {
+                length += n;
+            }
+        }
+        // ...then (or if the length is unknown) through the chunk buffer.
+        byte[] chunk = CHUNK.get();
+        while ((n = is.read(chunk, 0, chunk.length)) != -1) {
+            if (length + n > data.length) {
+                data = Arrays.copyOf(data, Math.max(length + n, data.length * 2));
+            }
+            System.arraycopy(chunk, 0, data, length, n);
+            length += n;
+        }
+        return ByteBuffer.wrap(data, 0, length).slice();
+    }
+
+    /**
+     * Work out the charset of a page.
+     *
+     * @param contentType The Content-Type header; may be <tt>null</tt>.
+     * @param bytes The page.
+     * @return The charset named in the header, else one declared by a byte
+     * order mark or a &lt;meta&gt; tag near the top of the page, else UTF-8.
+     */
+    public static Charset getCharset(String contentType, ByteBuffer bytes) {
+        Charset charset = charsetOf(contentType);
+        if (charset != null) {
+            return charset;
+        }
+        int n = Math.min(bytes.remaining(), MAX_SNIFF);
+        int p = bytes.position();
+        if (n >= 3 && (bytes.get(p) & 0xff) == 0xef && (bytes.get(p + 1) & 0xff) == 0xbb && (bytes.get(p + 2) & 0xff) == 0xbf) {
+            return StandardCharsets.UTF_8;
+        }
+        if (n >= 2 && (bytes.get(p) & 0xff) == 0xfe && (bytes.get(p + 1) & 0xff) == 0xff) {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (n >= 2 && (bytes.get(p) & 0xff) == 0xff && (bytes.get(p + 1) & 0xff) == 0xfe) {
+            return StandardCharsets.UTF_16LE;
+        }
+        byte[] head = new byte[n];
+        bytes.duplicate().get(head);
+        String top = new String(head, StandardCharsets.ISO_8859_1).toLowerCase(Locale.ROOT);
+        int meta = top.indexOf("<meta");
+        while (meta != -1) {
+            int end = top.indexOf('>', meta);
+            if (end == -1) {
+                break;
+            }
+            charset = charsetOf(top.substring(meta, end));
+            if (charset != null) {
+                return charset;
+            }
+            meta = top.indexOf("<meta", end);
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    // The charset named by a "charset=" parameter in the text, if any (and known).
+    private static Charset charsetOf(String text) {
+        if (text == null) {
+            return null;
+        }
+        int i = text.toLowerCase(Locale.ROOT).indexOf("charset=");
+        if (i == -1) {
+            return null;
+        }
+        i += "charset=".length();
+        int j = i;
+        while (j < text.length() && " \t\"';>/".indexOf(text.charAt(j)) == -1) {
+            j++;
+        }
+        if (i < text.length() && (text.charAt(i) == '"' || text.charAt(i) == '\'')) {
+            i++;
+            j = i;
+            while (j < text.length() && text.charAt(j) != '"' && text.charAt(j) != '\'') {
+                j++;
+            }
+        }
+        try {
+            return j > i ? Charset.forName(text.substring(i, j).trim()) : null;
+        } catch (IllegalArgumentException e) {
+            return null; // unknown or illegal charset name
+        }
+    }
+
+    /**
+     * Stream the page a line at a time (see {@link BufferedReader#readLine()}
+     * for what ends a line). Only the line being read is held in memory.
+     * The caller must close the stream, which closes the connection.
+     *
+     * @param uri
+     * @return The lines of the decoded page.
+     * @throws Exception if the page can't be opened.
+     */
+    public static Stream<String> lines(URI uri) throws Exception {
+        final BufferedReader reader = new BufferedReader(openReader(uri), CHUNK_SIZE / 4);
+        return reader.lines().onClose(closer(reader));
+    }
+
+    /**
+     * Stream the page in chunks of (at most) a fixed number of chars.
+     * Only the chunk being read is held in memory. The caller must close
+     * the stream, which closes the connection.
+     *
+     * @param uri
+     * @param chunkSize Chars per chunk; the last chunk may be shorter.
+     * @return The chunks of the decoded page.
+     * @throws Exception if the page can't be opened.
+     */
+    public static Stream<CharSequence> chunks(URI uri, final int chunkSize) throws Exception {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        final Reader reader = openReader(uri);
+        Iterator<CharSequence> iterator = new Iterator<CharSequence>() {
+            private CharBuffer next = null;
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                if (this.next == null && !this.done) {
+                    try {
+                        char[] chars = new char[chunkSize];
+                        int length = 0;
+                        int n;
+                        while (length < chunkSize && (n = reader.read(chars, length, chunkSize - length)) != -1) {
+                            length += n;
+                        }
+                        if (length == 0) {
+                            this.done = true;
+                        } else {
+                            this.next = CharBuffer.wrap(chars, 0, length);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return this.next != null;
+            }
+
+            @Override
+            public CharSequence next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                CharSequence chunk = this.next;
+                this.next = null;
+                return chunk;
             }
-            return page;
+        };
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(closer(reader));
+    }
+
+    // Open the page as text, in its charset (see read()), which is worked
+    // out from the header or, failing that, from the first bytes of the page.
+    private static Reader openReader(URI uri) throws Exception {
+        URLConnection connection = openConnection(uri);
+        InputStream is;
+        try {
+            is = connection.getInputStream();
+        } catch (Exception e) {
+            System.err.println(e.toString());
+            throw new java.io.IOException("Unable to open URI: " + uri, e);
         }
+        BufferedInputStream bis = new BufferedInputStream(decode(is, connection.getContentEncoding()), CHUNK_SIZE);
+        bis.mark(MAX_SNIFF);
+        byte[] head = new byte[MAX_SNIFF];
+        int length = 0;
+        int n;
+        while (length < MAX_SNIFF && (n = bis.read(head, length, MAX_SNIFF - length)) != -1) {
+            length += n;
+        }
+        bis.reset();
+        Charset charset = getCharset(connection.getContentType(), ByteBuffer.wrap(head, 0, length));
+        return new InputStreamReader(bis, charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    }
+
+    private static Runnable closer(final Reader reader) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * A page opened as a (buffered) byte stream, which can say what type
+     * of content it holds and in what charset without losing any bytes.
+     */
+    public static final class PageStream extends BufferedInputStream {
+        private final URLConnection connection;
+
+        PageStream(InputStream in, int size, URLConnection connection) {
+            super(in, size);
+            this.connection = connection;
+        }
+
+        /**
+         * @return The Content-Type the page was sent with (or, for a file,
+         * guessed from its name); may be <tt>null</tt>.
+         */
+        public String getContentType() {
+            return this.connection.getContentType();
+        }
+
+        /**
+         * Close the stream without reading the rest of the page: an HTTP
+         * connection is dropped rather than drained for reuse, so a large
+         * body isn't downloaded for nothing.
+         *
+         * @throws IOException
+         */
+        public void abandon() throws IOException {
+            if (this.connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) this.connection).disconnect();
+            }
+            close();
+        }
+
+        /**
+         * Work out the charset of the page as {@link PageReader#getCharset}
+         * does, looking ahead at the first bytes of the page if need be.
+         * Must be called before anything is read from the stream.
+         *
+         * @return The charset.
+         * @throws IOException
+         */
+        public Charset getCharset() throws IOException {
+            Charset charset = charsetOf(getContentType());
+            if (charset != null) {
+                return charset;
+            }
+            mark(MAX_SNIFF);
+            byte[] head = new byte[MAX_SNIFF];
+            int length = 0;
+            int n;
+            while (length < MAX_SNIFF && (n = read(head, length, MAX_SNIFF - length)) != -1) {
+                length += n;
+            }
+            reset();
+            return PageReader.getCharset(null, ByteBuffer.wrap(head, 0, length));
+        }
+    }
+
+    /**
+     * Open the page for reading as a (buffered) byte stream, for clients
+     * that want to process the page as it arrives rather than wait for
+     * all of it. The client is responsible for closing the stream.
+     *
+     * @param uri
+     * @return the input stream.
+     * @throws Exception
+     */
+    public static PageStream openStream(URI uri) throws Exception {
+        return openURI(uri);
     }
 
     /**
@@ -121,23 +1006,16 @@ public class PageReader {
      * @return the input stream.
      * @throws Exception
      */
-    private static InputStream openURI(final URI uri) throws Exception {
-        final int CONNECTION_TIMEOUT = 180000;
+    private static PageStream openURI(final URI uri) throws Exception {
         long startTime = 0;
         long endTime = 0;
         try {
-            if (uri == null) {
-                throw new IllegalArgumentException("uri is null");
-            }
-            final URL url = uri.toURL();
             startTime = System.currentTimeMillis();
-            final URLConnection connection = url.openConnection();
-            connection.setConnectTimeout(CONNECTION_TIMEOUT);
-            final InputStream is = url.openStream();
+            final URLConnection connection = openConnection(uri);
+            final InputStream is = decode(connection.getInputStream(), connection.getContentEncoding());
             final int PAGE_SIZE = 4096;
             final int NUM_PAGES = 20;
-            final BufferedInputStream bis = new BufferedInputStream(is, PAGE_SIZE * NUM_PAGES);
-            return bis;
+            return new PageStream(is, PAGE_SIZE * NUM_PAGES, connection);
         } catch (ConnectException e) {
             endTime = System.currentTimeMillis();
             System.err.println((endTime - startTime) + " millisecs before timeout.");
@@ -147,4 +1025,100 @@ public class PageReader {
             throw e;
         }
     }
+
+    /**
+     * Open a connection to the page, with our timeouts.
+     *
+     * @param uri
+     * @return the (unconnected) connection.
+     * @throws Exception
+     */
+    private static URLConnection openConnection(final URI uri) throws Exception {
+        if (uri == null) {
+            throw new IllegalArgumentException("uri is null");
+        }
+        final URL url = uri.toURL();
+        final URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT);
+        connection.setReadTimeout(DEFAULT_READ_TIMEOUT);
+        if (connection instanceof HttpURLConnection) {
+            connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+        }
+        return connection;
+    }
+
+    /**
+     * Wrap a stream so that it is decompressed as it is read.
+     *
+     * @param is The stream as received.
+     * @param contentEncoding The Content-Encoding it was received with; may be <tt>null</tt>.
+     * @return The decoded stream (<tt>is</tt> itself if it wasn't encoded).
+     * @throws IOException if the encoding isn't one we asked for, or the
+     * stream doesn't start the way the encoding says it should.
+     */
+    private static InputStream decode(InputStream is, String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return is;
+        }
+        String encoding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        if (encoding.length() == 0 || encoding.equals("identity")) {
+            return is;
+        }
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            return new GZIPInputStream(is, 8192);
+        }
+        if (encoding.equals("deflate")) {
+            // Properly a zlib stream, but some servers send raw deflate data.
+            BufferedInputStream bis = new BufferedInputStream(is, 8192);
+            bis.mark(2);
+            int cmf = bis.read();
+            int flg = bis.read();
+            bis.reset();
+            boolean zlib = cmf != -1 && flg != -1 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+            final Inflater inflater = new Inflater(!zlib);
+            return new InflaterInputStream(bis, inflater, 8192) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+        is.close();
+        throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+    }
+
+    // Counts the bytes read through it.
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return this.count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                this.count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                this.count += n;
+            }
+            return n;
+        }
+    }
 }
@@ -0,0 +1,208 @@
+// =============================================================================
+// ResultWriter by Cary Scofield (carys689@gmail.com) is licensed under a
+// Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+// (See http://www.creativecommons.org for details).
+//
+// RECIPIENT ACCEPTS THE GOODS “AS IS,” WITH NO REPRESENTATION OR WARRANTY
+// OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION IMPLIED
+// WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.
+// =============================================================================
+
+package vycegripp.utilities;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * <p>
+ * This class streams records (rows of values under fixed column names) to a
+ * file as JSON Lines (one JSON object per line) or CSV (with a header row),
+ * so that the file can be read while it is still being written.
+ * </p>
+ * <p>
+ * Writing is asynchronous: {@link #write(Object...)} only queues the record,
+ * and a background thread formats and writes it, flushing whenever it has
+ * caught up with the queue. Callers never wait on the disk. The writer is
+ * safe for use by multiple threads.
+ * </p>
+ */
+public class ResultWriter implements Closeable {
+
+    public static final String JSON_LINES = "jsonl";
+    public static final String CSV = "csv";
+
+    private static final Object[] END_OF_RECORDS = new Object[0];
+
+    private final String[] columns;
+    private final boolean json;
+    private final Writer out;
+    private final BlockingQueue<Object[]> records = new LinkedBlockingQueue<Object[]>();
+    private final Thread writerThread;
+    private volatile boolean closed = false;
+    private volatile IOException failure = null;
+
+    /**
+     * @param file Where to write the records; it is replaced if it exists.
+     * @param format JSON_LINES or CSV.
+     * @param columns The names of the values in each record.
+     * @throws IOException if the file can't be created.
+     */
+    public ResultWriter(File file, String format, String... columns) throws IOException {
+        if (!JSON_LINES.equals(format) && !CSV.equals(format)) {
+            throw new IllegalArgumentException("Unknown format: " + format);
+        }
+        this.columns = columns.clone();
+        this.json = JSON_LINES.equals(format);
+        this.out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+        if (!this.json) {
+            writeCsv(this.columns);
+        }
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "ResultWriter " + file.getName());
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Queue a record for writing. Records written after the writer has
+     * been closed are dropped.
+     *
+     * @param values One value per column; <tt>null</tt> for none. Numbers and
+     * booleans are written as such, anything else as a string.
+     */
+    public void write(Object... values) {
+        if (values.length != this.columns.length) {
+            throw new IllegalArgumentException("Expected " + this.columns.length + " values, got " + values.length);
+        }
+        if (!this.closed) {
+            this.records.add(values.clone());
+        }
+    }
+
+    /**
+     * Write out the records queued so far and close the file.
+     *
+     * @throws IOException if any record couldn't be written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.records.add(END_OF_RECORDS);
+        try {
+            this.writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    private void drain() {
+        try {
+            try {
+                while (true) {
+                    Object[] record = this.records.poll();
+                    if (record == null) {
+                        this.out.flush(); // caught up: let readers see what we have
+                        record = this.records.take();
+                    }
+                    if (record == END_OF_RECORDS) {
+                        break;
+                    }
+                    if (this.json) {
+                        writeJson(record);
+                    } else {
+                        writeCsv(record);
+                    }
+                }
+            } finally {
+                this.out.close();
+            }
+        } catch (IOException e) {
+            this.failure = e;
+            this.closed = true;
+        } catch (InterruptedException e) {
+            // abandoned
+        }
+    }
+
+    private void writeJson(Object[] record) throws IOException {
+        StringBuilder line = new StringBuilder(128);
+        line.append('{');
+        for (int i = 0; i < record.length; ++i) {
+            if (i > 0) {
+                line.append(',');
+            }
+            appendJsonString(line, this.columns[i]);
+            line.append(':');
+            Object value = record[i];
+            if (value == null) {
+                line.append("null");
+            } else if (value instanceof Number || value instanceof Boolean) {
+                line.append(value);
+            } else {
+                appendJsonString(line, value.toString());
+            }
+        }
+        line.append('}');
+        this.out.write(line.toString());
+        this.out.write('\n');
+    }
+
+    private static void appendJsonString(StringBuilder buf, String s) {
+        buf.append('"');
+        for (int i = 0, n = s.length(); i < n; ++i) {
+            char ch = s.charAt(i);
+            switch (ch) {
+                case '"': buf.append("\\\""); break;
+                case '\\': buf.append("\\\\"); break;
+                case '\n': buf.append("\\n"); break;
+                case '\r': buf.append("\\r"); break;
+                case '\t': buf.append("\\t"); break;
+                default:
+                    if (ch < 0x20) {
+                        buf.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        buf.append(ch);
+                    }
+            }
+        }
+        buf.append('"');
+    }
+
+    private void writeCsv(Object[] record) throws IOException {
+        StringBuilder line = new StringBuilder(128);
+        for (int i = 0; i < record.length; ++i) {
+            if (i > 0) {
+                line.append(',');
+            }
+            if (record[i] == null) {
+                continue;
+            }
+            String value = record[i].toString();
+            if (value.indexOf(',') != -1 || value.indexOf('"') != -1
+                    || value.indexOf('\n') != -1 || value.indexOf('\r') != -1) {
+                line.append('"').append(value.replace("\"", "\"\"")).append('"');
+            } else {
+                line.append(value);
+            }
+        }
+        this.out.write(line.toString());
+        this.out.write("\r\n");
+    }
+}
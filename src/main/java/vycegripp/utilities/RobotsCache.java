@@ -0,0 +1,396 @@
+// =============================================================================
+// RobotsCache by Cary Scofield (carys689@gmail.com) is licensed under a
+// Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+// (See http://www.creativecommons.org for details).
+//
+// RECIPIENT ACCEPTS THE GOODS “AS IS,” WITH NO REPRESENTATION OR WARRANTY
+// OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION IMPLIED
+// WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.
+// =============================================================================
+
+package vycegripp.utilities;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>
+ * This class fetches and remembers each host's robots.txt: the rules
+ * saying which paths robots may visit, and the sitemaps the site lists.
+ * Each host's robots.txt is fetched at most once, however many threads
+ * ask for it at the same time; the others wait for the one fetch.
+ * </p>
+ * <p>
+ * Rules are matched as RFC 9309 describes: the group naming our product
+ * token (in full, ignoring case) or, failing that, the "*" group applies,
+ * the longest matching Allow or Disallow pattern wins, Allow wins a tie,
+ * and patterns may use '*' (any characters) and '$' (end of path). A
+ * robots.txt that is missing (any 4xx status) allows everything; one that
+ * can't be fetched because of a server error (5xx) or a failed connection
+ * or read disallows everything to crawlers, since the site may well have
+ * meant to keep them out. Those stand-in rules don't stop a single link
+ * being checked ({@link #mayCheck}): checking it is how we find out
+ * whether the host answers at all.
+ * </p>
+ */
+public class RobotsCache {
+
+    private static final int MAX_ROBOTS_SIZE = 500 * 1024; // RFC 9309 minimum parsing limit
+
+    /**
+     * The rules from one host's robots.txt.
+     */
+    public static final class Rules {
+        public static final Rules ALLOW_ALL = new Rules(new ArrayList<String>(), new ArrayList<Boolean>(),
+                new ArrayList<String>(), -1, false);
+        // For a robots.txt the server failed to give us (5xx).
+        public static final Rules DISALLOW_ALL = new Rules(Collections.singletonList("/"),
+                Collections.singletonList(Boolean.FALSE), new ArrayList<String>(), -1, true);
+        // For a robots.txt we couldn't get an answer about at all.
+        public static final Rules UNREACHABLE = new Rules(Collections.singletonList("/"),
+                Collections.singletonList(Boolean.FALSE), new ArrayList<String>(), -1, true);
+
+        private final List<String> patterns;
+        private final List<Boolean> allows;
+        private final List<String> sitemaps;
+        private final int crawlDelay;
+        private final boolean crawlingOnly;
+
+        private Rules(List<String> patterns, List<Boolean> allows, List<String> sitemaps, int crawlDelay,
+                boolean crawlingOnly) {
+            this.patterns = patterns;
+            this.allows = allows;
+            this.sitemaps = Collections.unmodifiableList(sitemaps);
+            this.crawlDelay = crawlDelay;
+            this.crawlingOnly = crawlingOnly;
+        }
+
+        /**
+         * @param path The path (and query, if any) of a URL on the host.
+         * @return <tt>true</tt> if robots may visit it.
+         */
+        public boolean isAllowed(String path) {
+            if (path == null || path.length() == 0) {
+                path = "/";
+            }
+            int bestLength = -1;
+            boolean allowed = true;
+            for (int i = 0; i < this.patterns.size(); ++i) {
+                String pattern = this.patterns.get(i);
+                if (pattern.length() < bestLength || !matches(pattern, path)) {
+                    continue;
+                }
+                boolean allow = this.allows.get(i).booleanValue();
+                if (pattern.length() > bestLength || allow) {
+                    bestLength = pattern.length();
+                    allowed = allow;
+                }
+            }
+            return allowed;
+        }
+
+        /**
+         * @return The sitemap URLs listed in the robots.txt, in order.
+         */
+        public List<String> getSitemaps() {
+            return this.sitemaps;
+        }
+
+        /**
+         * @return The Crawl-delay (in seconds) for our group; -1 if none was given.
+         */
+        public int getCrawlDelay() {
+            return this.crawlDelay;
+        }
+
+        /**
+         * @return <tt>true</tt> if these rules only stand in for a robots.txt
+         * that couldn't be fetched, and so bind crawlers but not link checks.
+         */
+        public boolean isCrawlingOnly() {
+            return this.crawlingOnly;
+        }
+    }
+
+    private final String userAgent;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final ConcurrentHashMap<String, FutureTask<Rules>> hosts = new ConcurrentHashMap<String, FutureTask<Rules>>();
+
+    /**
+     * @param userAgent The product token robots.txt groups are matched against.
+     * @param connectTimeout Milliseconds to wait for a connection to a host.
+     * @param readTimeout Milliseconds to wait for a host to answer.
+     */
+    public RobotsCache(String userAgent, int connectTimeout, int readTimeout) {
+        this.userAgent = userAgent.toLowerCase();
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Get the rules for the host of a URL, fetching its robots.txt if
+     * this is the first time the host has been asked about.
+     *
+     * @param uri An absolute http or https URL.
+     * @return The host's rules.
+     * @throws InterruptedException if interrupted while waiting for another thread's fetch.
+     */
+    public Rules getRules(URI uri) throws InterruptedException {
+        final String origin = getOrigin(uri);
+        if (origin == null) {
+            return Rules.ALLOW_ALL;
+        }
+        FutureTask<Rules> rules = this.hosts.get(origin);
+        if (rules == null) {
+            final FutureTask<Rules> newRules = new FutureTask<Rules>(new Callable<Rules>() {
+                @Override
+                public Rules call() {
+                    return fetch(origin);
+                }
+            });
+            rules = this.hosts.putIfAbsent(origin, newRules);
+            if (rules == null) {
+                rules = newRules;
+                newRules.run();
+            }
+        }
+        try {
+            return rules.get();
+        } catch (ExecutionException e) {
+            return Rules.UNREACHABLE;
+        }
+    }
+
+    /**
+     * @param uri An absolute http or https URL.
+     * @return <tt>true</tt> if the host's robots.txt lets robots visit the URL.
+     * @throws InterruptedException
+     */
+    public boolean isAllowed(URI uri) throws InterruptedException {
+        return getRules(uri).isAllowed(getPath(uri));
+    }
+
+    /**
+     * Like {@link #isAllowed}, but for checking a single link rather than
+     * crawling: a host whose robots.txt couldn't be fetched doesn't forbid it.
+     *
+     * @param uri An absolute http or https URL.
+     * @return <tt>true</tt> if the URL may be checked.
+     * @throws InterruptedException
+     */
+    public boolean mayCheck(URI uri) throws InterruptedException {
+        Rules rules = getRules(uri);
+        return rules.isCrawlingOnly() || rules.isAllowed(getPath(uri));
+    }
+
+    /**
+     * @param uri An absolute http or https URL.
+     * @return The sitemap URLs the host's robots.txt lists.
+     * @throws InterruptedException
+     */
+    public List<String> getSitemaps(URI uri) throws InterruptedException {
+        return getRules(uri).getSitemaps();
+    }
+
+    /**
+     * @param uri
+     * @return "scheme://host[:port]" in lower case, or <tt>null</tt> if the
+     * URL isn't an absolute http or https URL.
+     */
+    public static String getOrigin(URI uri) {
+        String scheme = uri.getScheme();
+        String host = uri.getHost();
+        if (scheme == null || host == null) {
+            return null;
+        }
+        scheme = scheme.toLowerCase();
+        if (!scheme.equals("http") && !scheme.equals("https")) {
+            return null;
+        }
+        StringBuilder origin = new StringBuilder(scheme).append("://").append(host.toLowerCase());
+        if (uri.getPort() != -1) {
+            origin.append(':').append(uri.getPort());
+        }
+        return origin.toString();
+    }
+
+    // The path and query of a URL, as robots.txt patterns are matched against.
+    private static String getPath(URI uri) {
+        String path = uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path = (path == null ? "" : path) + "?" + uri.getRawQuery();
+        }
+        return path;
+    }
+
+    private Rules fetch(String origin) {
+        InputStream is = null;
+        try {
+            URLConnection connection = URI.create(origin + "/robots.txt").toURL().openConnection();
+            connection.setConnectTimeout(this.connectTimeout);
+            connection.setReadTimeout(this.readTimeout);
+            if (connection instanceof HttpURLConnection) {
+                int status = ((HttpURLConnection) connection).getResponseCode();
+                if (status >= 500) {
+                    return Rules.DISALLOW_ALL;
+                }
+                if (status < 200 || status >= 300) {
+                    return Rules.ALLOW_ALL;
+                }
+            }
+            is = connection.getInputStream();
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while (text.size() < MAX_ROBOTS_SIZE && (n = is.read(buf)) != -1) {
+                text.write(buf, 0, n);
+            }
+            return parse(new String(text.toByteArray(), StandardCharsets.UTF_8), this.userAgent);
+        } catch (IOException e) {
+            return Rules.UNREACHABLE;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse the text of a robots.txt.
+     *
+     * @param text
+     * @param userAgent The product token to pick the group by, in lower case.
+     * @return The rules of the group for the user agent (or, failing that,
+     * of the "*" group), along with the sitemaps listed anywhere in the file.
+     */
+    public static Rules parse(String text, String userAgent) {
+        List<String> ourPatterns = new ArrayList<String>();
+        List<Boolean> ourAllows = new ArrayList<Boolean>();
+        List<String> anyPatterns = new ArrayList<String>();
+        List<Boolean> anyAllows = new ArrayList<Boolean>();
+        List<String> sitemaps = new ArrayList<String>();
+        int ourDelay = -1;
+        int anyDelay = -1;
+        boolean foundOurs = false;
+        boolean inOurs = false;
+        boolean inAny = false;
+        boolean readingAgents = false;
+        try {
+            BufferedReader reader = new BufferedReader(new StringReader(text));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int hash = line.indexOf('#');
+                if (hash != -1) {
+                    line = line.substring(0, hash);
+                }
+                int colon = line.indexOf(':');
+                if (colon == -1) {
+                    continue;
+                }
+                String field = line.substring(0, colon).trim().toLowerCase();
+                String value = line.substring(colon + 1).trim();
+                if (field.equals("user-agent")) {
+                    if (!readingAgents) {
+                        inOurs = false;
+                        inAny = false;
+                        readingAgents = true;
+                    }
+                    String agent = value.toLowerCase();
+                    if (agent.equals("*")) {
+                        inAny = true;
+                    } else if (agent.equals(userAgent)) {
+                        inOurs = true;
+                        foundOurs = true;
+                    }
+                    continue;
+                }
+                readingAgents = false;
+                if (field.equals("sitemap")) {
+                    if (value.length() > 0) {
+                        sitemaps.add(value);
+                    }
+                } else if (field.equals("allow") || field.equals("disallow")) {
+                    if (value.length() == 0) {
+                        continue; // an empty Disallow allows everything
+                    }
+                    Boolean allow = Boolean.valueOf(field.equals("allow"));
+                    if (inOurs) {
+                        ourPatterns.add(value);
+                        ourAllows.add(allow);
+                    }
+                    if (inAny) {
+                        anyPatterns.add(value);
+                        anyAllows.add(allow);
+                    }
+                } else if (field.equals("crawl-delay")) {
+                    try {
+                        int delay = (int) Math.ceil(Double.parseDouble(value));
+                        if (inOurs) {
+                            ourDelay = delay;
+                        }
+                        if (inAny) {
+                            anyDelay = delay;
+                        }
+                    } catch (NumberFormatException e) {
+                        // ignore
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // can't happen reading a string
+        }
+        return foundOurs
+                ? new Rules(ourPatterns, ourAllows, sitemaps, ourDelay, false)
+                : new Rules(anyPatterns, anyAllows, sitemaps, anyDelay, false);
+    }
+
+    /**
+     * Match a robots.txt path pattern ('*' matches any characters, a final
+     * '$' anchors the end) against the start of a path.
+     */
+    static boolean matches(String pattern, String path) {
+        boolean anchored = pattern.endsWith("$");
+        if (anchored) {
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        if (pattern.indexOf('*') == -1) {
+            return anchored ? path.equals(pattern) : path.startsWith(pattern);
+        }
+        String[] pieces = pattern.split("\\*", -1);
+        if (!path.startsWith(pieces[0])) {
+            return false;
+        }
+        int pos = pieces[0].length();
+        for (int i = 1; i < pieces.length; ++i) {
+            String piece = pieces[i];
+            if (i == pieces.length - 1 && anchored) {
+                return path.length() - piece.length() >= pos && path.endsWith(piece);
+            }
+            int found = path.indexOf(piece, pos);
+            if (found == -1) {
+                return false;
+            }
+            pos = found + piece.length();
+        }
+        return true;
+    }
+}
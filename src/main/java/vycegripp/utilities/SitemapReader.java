@@ -0,0 +1,170 @@
+// =============================================================================
+// SitemapReader by Cary Scofield (carys689@gmail.com) is licensed under a
+// Creative Commons Attribution-NonCommercial-NoDerivs 3.0 Unported License.
+// (See http://www.creativecommons.org for details).
+//
+// RECIPIENT ACCEPTS THE GOODS “AS IS,” WITH NO REPRESENTATION OR WARRANTY
+// OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION IMPLIED
+// WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE.
+// =============================================================================
+
+package vycegripp.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * <p>
+ * This class lists the pages of a site from its sitemaps (see
+ * sitemaps.org). A sitemap is read as a stream with StAX, so even the
+ * largest (50,000 URLs) is never held in memory, and each page URL is handed
+ * to a {@link Listener} as soon as it has been read. A sitemap index is
+ * followed into the sitemaps it lists. Gzipped sitemaps (whether named
+ * <tt>.gz</tt> or not) are recognized by their first bytes and
+ * decompressed as they are read.
+ * </p>
+ */
+public class SitemapReader {
+
+    /**
+     * Receives the page URLs found in the sitemaps.
+     */
+    public interface Listener {
+        /**
+         * @param url The page URL.
+         * @param sitemap The sitemap it was listed in.
+         */
+        void pageFound(String url, String sitemap) throws Exception;
+    }
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private final int maxSitemaps;
+    private int sitemapsRead = 0;
+
+    /**
+     * @param maxSitemaps Most sitemaps (indexes included) to read in one call to {@link #read}.
+     */
+    public SitemapReader(int maxSitemaps) {
+        this.maxSitemaps = maxSitemaps;
+    }
+
+    /**
+     * Read a sitemap or sitemap index, and every sitemap an index leads to,
+     * up to the limit. A sitemap (other than the first) that can't be read
+     * is skipped.
+     *
+     * @param sitemap
+     * @param listener
+     * @return The number of sitemaps read.
+     * @throws Exception if the first sitemap can't be read, or from the listener.
+     */
+    public int read(URI sitemap, Listener listener) throws Exception {
+        this.sitemapsRead = 0;
+        ArrayDeque<URI> toRead = new ArrayDeque<URI>();
+        Set<String> seen = new HashSet<String>();
+        toRead.add(sitemap);
+        seen.add(sitemap.toString());
+        while (!toRead.isEmpty() && this.sitemapsRead < this.maxSitemaps) {
+            URI uri = toRead.poll();
+            try {
+                readOne(uri, listener, toRead, seen);
+            } catch (ListenerException e) {
+                throw (Exception) e.getCause();
+            } catch (Exception e) {
+                if (uri == sitemap) {
+                    throw e;
+                }
+                System.err.println(e.toString() + " on " + uri);
+            }
+        }
+        return this.sitemapsRead;
+    }
+
+    private void readOne(URI uri, Listener listener, ArrayDeque<URI> toRead, Set<String> seen) throws Exception {
+        InputStream is = PageReader.openStream(uri);
+        XMLStreamReader xml = null;
+        try {
+            is = maybeGunzip(is);
+            xml = newInputFactory().createXMLStreamReader(is);
+            this.sitemapsRead++;
+            boolean inIndex = false;
+            boolean inLoc = false;
+            StringBuilder loc = new StringBuilder();
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = xml.getLocalName();
+                    if (name.equals("sitemapindex")) {
+                        inIndex = true;
+                    } else if (name.equals("loc")) {
+                        inLoc = true;
+                        loc.setLength(0);
+                    }
+                } else if (inLoc && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+                    loc.append(xml.getText());
+                } else if (event == XMLStreamConstants.END_ELEMENT && inLoc) {
+                    inLoc = false;
+                    String url = loc.toString().trim();
+                    if (url.length() == 0) {
+                        continue;
+                    }
+                    if (inIndex) {
+                        if (seen.add(url)) {
+                            try {
+                                toRead.add(uri.resolve(url));
+                            } catch (IllegalArgumentException e) {
+                                // not a valid URI
+                            }
+                        }
+                    } else {
+                        try {
+                            listener.pageFound(url, uri.toString());
+                        } catch (Exception e) {
+                            throw new ListenerException(e);
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (xml != null) {
+                xml.close();
+            }
+            is.close();
+        }
+    }
+
+    private static InputStream maybeGunzip(InputStream is) throws Exception {
+        BufferedInputStream bis = is instanceof BufferedInputStream ? (BufferedInputStream) is : new BufferedInputStream(is);
+        bis.mark(2);
+        int magic = bis.read() | (bis.read() << 8);
+        bis.reset();
+        return magic == GZIP_MAGIC ? new GZIPInputStream(bis, 8192) : bis;
+    }
+
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // A sitemap has no business with DTDs or external entities.
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        return factory;
+    }
+
+    // Carries an exception thrown by the listener past the per-sitemap error handling.
+    private static final class ListenerException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ListenerException(Exception cause) {
+            super(cause);
+        }
+    }
+}